@@ -0,0 +1,11 @@
+#version 430
+
+in vec4 frag_color;
+out vec4 color;
+
+void main(void)
+{
+  vec2 d = gl_PointCoord - vec2(0.5);
+  if (dot(d, d) > 0.25) discard;
+  color = frag_color;
+}
@@ -0,0 +1,16 @@
+#version 430
+
+layout(location = 0) in vec3 positions;
+layout(location = 1) in vec4 colors;
+
+uniform mat4 view_tr;
+uniform float point_size;
+
+out vec4 frag_color;
+
+void main(void)
+{
+  gl_Position = view_tr * vec4(positions, 1);
+  gl_PointSize = point_size / gl_Position.w;
+  frag_color = colors;
+}
@@ -0,0 +1,90 @@
+(ns game.collision
+  (:import (game.core Entity)
+           (example.collision SweepAndPrune)
+           (org.joml Matrix4f Vector3f)))
+
+(defn ^SweepAndPrune create-broadphase
+  ([] (create-broadphase 1024))
+  ([capacity] (SweepAndPrune. (int capacity))))
+
+(defn mesh-bounds
+  "Local bounding box of a Mesh's positions as [min-x min-y min-z max-x max-y max-z]."
+  [mesh]
+  (let [^floats positions (:positions mesh)
+        n (alength positions)]
+    (loop [i 0
+           lx Float/POSITIVE_INFINITY ly Float/POSITIVE_INFINITY lz Float/POSITIVE_INFINITY
+           hx Float/NEGATIVE_INFINITY hy Float/NEGATIVE_INFINITY hz Float/NEGATIVE_INFINITY]
+      (if (< i n)
+        (let [x (aget positions i) y (aget positions (+ i 1)) z (aget positions (+ i 2))]
+          (recur (+ i 3) (min lx x) (min ly y) (min lz z) (max hx x) (max hy y) (max hz z)))
+        [lx ly lz hx hy hz]))))
+
+(defn add-body
+  "Adds a box and returns its id."
+  [^SweepAndPrune broadphase [min-x min-y min-z max-x max-y max-z]]
+  (.add broadphase (float min-x) (float min-y) (float min-z) (float max-x) (float max-y) (float max-z)))
+
+(defn set-body-bounds [^SweepAndPrune broadphase id [min-x min-y min-z max-x max-y max-z]]
+  (.setBounds broadphase (int id) (float min-x) (float min-y) (float min-z) (float max-x) (float max-y) (float max-z)))
+
+(defn set-body-transform
+  "Sets a body's box to the world bounds of local-bounds under model-tr. scratch-min and
+   scratch-max are reused so the per-frame refresh allocates nothing."
+  [^SweepAndPrune broadphase id [min-x min-y min-z max-x max-y max-z] ^Matrix4f model-tr
+   ^Vector3f scratch-min ^Vector3f scratch-max]
+  (.transformAab model-tr (float min-x) (float min-y) (float min-z) (float max-x) (float max-y) (float max-z)
+                 scratch-min scratch-max)
+  (.setBounds broadphase (int id)
+              (.x scratch-min) (.y scratch-min) (.z scratch-min)
+              (.x scratch-max) (.y scratch-max) (.z scratch-max)))
+
+(defn remove-body [^SweepAndPrune broadphase id]
+  (.remove broadphase (int id)))
+
+(defn update-broadphase
+  "Sorts and sweeps, returning the number of overlapping pairs."
+  [^SweepAndPrune broadphase]
+  (.update broadphase)
+  (.getPairCount broadphase))
+
+(defn overlapping-pairs
+  "Pairs from the last update as [lower-id higher-id] vectors. Allocates; prefer
+   reading .getPairs directly in per-frame code."
+  [^SweepAndPrune broadphase]
+  (let [^ints pairs (.getPairs broadphase)]
+    (mapv #(vector (aget pairs (* 2 %)) (aget pairs (inc (* 2 %)))) (range (.getPairCount broadphase)))))
+
+(defrecord CollisionWorld [^SweepAndPrune broadphase bodies on-pairs ^Vector3f scratch-min ^Vector3f scratch-max]
+  Entity
+  (update-entity [self window delta-time]
+    (doseq [[id {:keys [bounds model-tr]}] @bodies]
+      (set-body-transform broadphase id bounds model-tr scratch-min scratch-max))
+    (update-broadphase broadphase)
+    (on-pairs self))
+  (render-entity [self window]))
+
+(defn create-collision-world
+  "An Entity that refreshes every body's world box from its model matrix each frame and then
+   calls (on-pairs world) with the broadphase holding the new pair list."
+  [on-pairs]
+  (CollisionWorld. (create-broadphase) (atom {}) on-pairs (Vector3f.) (Vector3f.)))
+
+(defn world-add
+  "Tracks local-bounds placed by model-tr, which may be mutated by controllers. Returns the id."
+  [^CollisionWorld world local-bounds ^Matrix4f model-tr]
+  (let [id (add-body (:broadphase world) local-bounds)]
+    (swap! (:bodies world) assoc id {:bounds local-bounds :model-tr model-tr})
+    id))
+
+(defn world-remove [^CollisionWorld world id]
+  (remove-body (:broadphase world) id)
+  (swap! (:bodies world) dissoc id))
+
+(comment
+  (def collisions (create-collision-world #(when (pos? (.getPairCount ^SweepAndPrune (:broadphase %)))
+                                              (println "overlaps" (overlapping-pairs (:broadphase %))))))
+  (def crate-tr (-> (Matrix4f.) (.translate (float 0) (float 0) (float -5))))
+  (world-add collisions (mesh-bounds crate-mesh) crate-tr)
+  (game.core/entity-list-add collisions)
+  )
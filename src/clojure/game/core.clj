@@ -1,14 +1,25 @@
 (ns game.core
   (:require [game.task-queue :refer :all]
+            [game.gl :refer [gl-backend gl-clear gl-swap-buffers gl-poll-events]]
             [clojure.java.io :as io])
   (:import (org.lwjgl.opengl GL GL11 GL20 GL30 GL15)
            (org.lwjgl.glfw GLFWErrorCallback GLFW Callbacks GLFWWindowSizeCallbackI GLFWKeyCallbackI)
            (org.lwjgl.system MemoryStack MemoryUtil)
            (java.nio IntBuffer FloatBuffer)
+           (example.buffers DirectBufferPool FrameArena)
            ))
 
 (def global-window (ref nil))
 
+(def window-size
+  "[width height] of global-window, kept current by the resize callback so per-frame
+   code does not have to query GLFW."
+  (atom [0 0]))
+
+(def ^FrameArena frame-arena
+  "Scratch buffers for the current frame, reset at the end of main-loop. GL thread only."
+  (FrameArena. DirectBufferPool/DEFAULT (* 4 1024 1024)))
+
 
 (defprotocol Entity
   (render-entity [self window])
@@ -29,7 +40,7 @@
   (dosync (ref-set entity-list [entity])))
 
 (defn entity-list-render [window]
-  (GL11/glClear (bit-or GL11/GL_COLOR_BUFFER_BIT GL11/GL_DEPTH_BUFFER_BIT))
+  (gl-clear @gl-backend (bit-or GL11/GL_COLOR_BUFFER_BIT GL11/GL_DEPTH_BUFFER_BIT))
   (doall (map #(render-entity % window) (deref entity-list)))
   nil)
 
@@ -62,8 +73,9 @@
   (read-execute-action)
   (entity-list-update window delta-time)
   (entity-list-render window)
-  (GLFW/glfwSwapBuffers window)
-  (GLFW/glfwPollEvents)
+  (gl-swap-buffers @gl-backend window)
+  (gl-poll-events @gl-backend)
+  (.reset frame-arena)
   )
 
 (defn get-window-size [window]
@@ -95,12 +107,17 @@
           (GLFW/glfwMakeContextCurrent window)
           (GLFW/glfwSwapInterval 1)
           (GLFW/glfwShowWindow window)
+          ;; A null backend may have switched GL to explicit init before the window opened.
+          (when (nil? (GL/getFunctionProvider))
+            (GL/create))
           (GL/createCapabilities)
           (GL11/glClearColor 0.0 0.0 0.0 0.0)
+          (reset! window-size (get-window-size window))
           (GLFW/glfwSetWindowSizeCallback
             window
             (reify GLFWWindowSizeCallbackI
               (invoke [this window width height]
+                (reset! window-size [width height])
                 (GL11/glViewport 0 0 width height))))
           (GLFW/glfwSetKeyCallback
             window
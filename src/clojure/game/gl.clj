@@ -0,0 +1,259 @@
+(ns game.gl
+  (:import (org.lwjgl.opengl GL11 GL13 GL15 GL20 GL30)
+           (org.lwjgl.glfw GLFW)
+           (org.lwjgl.system Configuration)
+           (java.nio ByteBuffer FloatBuffer)
+           (java.util.concurrent.atomic AtomicInteger)))
+
+;; The GL calls made by main-loop, the SimpleScene render path and particles go through a
+;; GLBackend so that frames can be replayed without a window or a GPU. The
+;; backend is process wide, like the entity list; swap it before starting a
+;; main loop, not while one is running.
+
+(defprotocol GLBackend
+  (gl-clear [this mask])
+  (gl-use-program [this program])
+  (gl-uniform-matrix4fv [this location transpose fb])
+  (gl-uniform1f [this location value])
+  (gl-polygon-mode [this face mode])
+  (gl-enable-vertex-attrib-array [this index])
+  (gl-active-texture [this unit])
+  (gl-bind-texture [this target texture])
+  (gl-bind-buffer [this target buffer])
+  (gl-bind-vertex-array [this vertex-array])
+  (gl-draw-elements [this mode count type offset])
+  (gl-draw-arrays [this mode first count])
+  (gl-enable [this cap])
+  (gl-disable [this cap])
+  (gl-blend-func [this sfactor dfactor])
+  (gl-depth-mask [this flag])
+  (gl-swap-buffers [this window])
+  (gl-poll-events [this])
+  (gl-get-key [this window key])
+  (gl-gen-buffer [this])
+  (gl-delete-buffer [this buffer])
+  (gl-buffer-data [this target data usage])
+  (gl-buffer-sub-data [this target offset data])
+  (gl-gen-vertex-array [this])
+  (gl-delete-vertex-array [this vertex-array])
+  (gl-vertex-attrib-pointer [this index size type normalized stride offset])
+  (gl-create-program [this])
+  (gl-delete-program [this program])
+  (gl-attach-shader [this program shader])
+  (gl-link-program [this program])
+  (gl-get-program-i [this program pname])
+  (gl-get-program-info-log [this program])
+  (gl-create-shader [this type])
+  (gl-delete-shader [this shader])
+  (gl-shader-source [this shader source])
+  (gl-compile-shader [this shader])
+  (gl-get-shader-i [this shader pname])
+  (gl-get-shader-info-log [this shader])
+  (gl-get-uniform-location [this program uniform-name])
+  (gl-get-attrib-location [this program attribute-name])
+  (gl-gen-texture [this])
+  (gl-delete-texture [this texture])
+  (gl-tex-parameter-i [this target pname param])
+  (gl-tex-image-2d [this target level internal-format width height format type pixels])
+  (gl-get-error [this]))
+
+(deftype LWJGLBackend []
+  GLBackend
+  (gl-clear [this mask] (GL11/glClear (int mask)))
+  (gl-use-program [this program] (GL20/glUseProgram (int program)))
+  (gl-uniform-matrix4fv [this location transpose fb]
+    (GL20/glUniformMatrix4fv (int location) (boolean transpose) ^FloatBuffer fb))
+  (gl-uniform1f [this location value] (GL20/glUniform1f (int location) (float value)))
+  (gl-polygon-mode [this face mode] (GL11/glPolygonMode (int face) (int mode)))
+  (gl-enable-vertex-attrib-array [this index] (GL20/glEnableVertexAttribArray (int index)))
+  (gl-active-texture [this unit] (GL13/glActiveTexture (int unit)))
+  (gl-bind-texture [this target texture] (GL11/glBindTexture (int target) (int texture)))
+  (gl-bind-buffer [this target buffer] (GL15/glBindBuffer (int target) (int buffer)))
+  (gl-bind-vertex-array [this vertex-array] (GL30/glBindVertexArray (int vertex-array)))
+  (gl-draw-elements [this mode count type offset]
+    (GL11/glDrawElements (int mode) (int count) (int type) (long offset)))
+  (gl-draw-arrays [this mode first count] (GL11/glDrawArrays (int mode) (int first) (int count)))
+  (gl-enable [this cap] (GL11/glEnable (int cap)))
+  (gl-disable [this cap] (GL11/glDisable (int cap)))
+  (gl-blend-func [this sfactor dfactor] (GL11/glBlendFunc (int sfactor) (int dfactor)))
+  (gl-depth-mask [this flag] (GL11/glDepthMask (boolean flag)))
+  (gl-swap-buffers [this window] (GLFW/glfwSwapBuffers (long window)))
+  (gl-poll-events [this] (GLFW/glfwPollEvents))
+  (gl-get-key [this window key] (GLFW/glfwGetKey (long window) (int key)))
+  (gl-gen-buffer [this] (GL15/glGenBuffers))
+  (gl-delete-buffer [this buffer] (GL15/glDeleteBuffers (int buffer)))
+  (gl-buffer-data [this target data usage]
+    ;; data is a direct FloatBuffer, IntBuffer or ByteBuffer, or a long byte size to
+    ;; allocate uninitialised storage; the overload is picked at runtime.
+    (GL15/glBufferData (int target) data (int usage)))
+  (gl-buffer-sub-data [this target offset data]
+    (GL15/glBufferSubData (int target) (long offset) ^ByteBuffer data))
+  (gl-gen-vertex-array [this] (GL30/glGenVertexArrays))
+  (gl-delete-vertex-array [this vertex-array] (GL30/glDeleteVertexArrays (int vertex-array)))
+  (gl-vertex-attrib-pointer [this index size type normalized stride offset]
+    (GL20/glVertexAttribPointer (int index) (int size) (int type) (boolean normalized) (int stride) (long offset)))
+  (gl-create-program [this] (GL20/glCreateProgram))
+  (gl-delete-program [this program] (GL20/glDeleteProgram (int program)))
+  (gl-attach-shader [this program shader] (GL20/glAttachShader (int program) (int shader)))
+  (gl-link-program [this program] (GL20/glLinkProgram (int program)))
+  (gl-get-program-i [this program pname] (GL20/glGetProgrami (int program) (int pname)))
+  (gl-get-program-info-log [this program] (GL20/glGetProgramInfoLog (int program) 40960))
+  (gl-create-shader [this type] (GL20/glCreateShader (int type)))
+  (gl-delete-shader [this shader] (GL20/glDeleteShader (int shader)))
+  (gl-shader-source [this shader source] (GL20/glShaderSource (int shader) ^CharSequence source))
+  (gl-compile-shader [this shader] (GL20/glCompileShader (int shader)))
+  (gl-get-shader-i [this shader pname] (GL20/glGetShaderi (int shader) (int pname)))
+  (gl-get-shader-info-log [this shader] (GL20/glGetShaderInfoLog (int shader) 4096))
+  (gl-get-uniform-location [this program uniform-name]
+    (GL20/glGetUniformLocation (int program) ^CharSequence uniform-name))
+  (gl-get-attrib-location [this program attribute-name]
+    (GL20/glGetAttribLocation (int program) ^CharSequence attribute-name))
+  (gl-gen-texture [this] (GL11/glGenTextures))
+  (gl-delete-texture [this texture] (GL11/glDeleteTextures (int texture)))
+  (gl-tex-parameter-i [this target pname param] (GL11/glTexParameteri (int target) (int pname) (int param)))
+  (gl-tex-image-2d [this target level internal-format width height format type pixels]
+    (GL11/glTexImage2D (int target) (int level) (int internal-format) (int width) (int height) 0
+                       (int format) (int type) ^ByteBuffer pixels))
+  (gl-get-error [this] (GL11/glGetError)))
+
+(defn lwjgl-backend []
+  (LWJGLBackend.))
+
+(def gl-backend
+  "The backend used by game.core and game.shaders."
+  (atom (lwjgl-backend)))
+
+(defn set-gl-backend! [backend]
+  (reset! gl-backend backend))
+
+(defmacro with-gl-backend
+  "Runs body with backend installed, restoring the previous backend afterwards."
+  [backend & body]
+  `(let [previous# @gl-backend]
+     (set-gl-backend! ~backend)
+     (try ~@body
+          (finally (set-gl-backend! previous#)))))
+
+;; Null backend - every call is counted and does nothing else. Handles are
+;; fresh integers, status queries succeed and no key is ever down. Counting
+;; into a long array keeps the backend from allocating, so replayed frames
+;; measure the allocation of the game code alone. Calls are also recorded as
+;; vectors when a calls atom is given, for tests that check call sequences.
+
+(def gl-call-names
+  [:clear :use-program :uniform-matrix4fv :uniform1f :polygon-mode :enable-vertex-attrib-array
+   :active-texture :bind-texture :bind-buffer :bind-vertex-array :draw-elements :draw-arrays :enable
+   :disable :blend-func :depth-mask :swap-buffers :poll-events :get-key
+   :gen-buffer :delete-buffer :buffer-data :buffer-sub-data :gen-vertex-array :delete-vertex-array :vertex-attrib-pointer
+   :create-program :delete-program :attach-shader :link-program :get-program-i :get-program-info-log
+   :create-shader :delete-shader :shader-source :compile-shader :get-shader-i :get-shader-info-log
+   :get-uniform-location :get-attrib-location :gen-texture :delete-texture :tex-parameter-i
+   :tex-image-2d :get-error])
+
+(def ^:private gl-call-index (zipmap gl-call-names (range)))
+
+(defmacro ^:private counted
+  "Counts call in the enclosing NullGLBackend, records it when recording and returns result."
+  [call args result]
+  (let [index (gl-call-index call)]
+    (assert index (str "Unknown GL call " call))
+    `(do (aset ~'counts ~index (inc (aget ~'counts ~index)))
+         (when ~'calls (swap! ~'calls conj [~call ~@args]))
+         ~result)))
+
+(deftype NullGLBackend [^longs counts calls ^AtomicInteger next-id]
+  GLBackend
+  (gl-clear [this mask] (counted :clear [mask] nil))
+  (gl-use-program [this program] (counted :use-program [program] nil))
+  (gl-uniform-matrix4fv [this location transpose fb] (counted :uniform-matrix4fv [location transpose] nil))
+  (gl-uniform1f [this location value] (counted :uniform1f [location value] nil))
+  (gl-polygon-mode [this face mode] (counted :polygon-mode [face mode] nil))
+  (gl-enable-vertex-attrib-array [this index] (counted :enable-vertex-attrib-array [index] nil))
+  (gl-active-texture [this unit] (counted :active-texture [unit] nil))
+  (gl-bind-texture [this target texture] (counted :bind-texture [target texture] nil))
+  (gl-bind-buffer [this target buffer] (counted :bind-buffer [target buffer] nil))
+  (gl-bind-vertex-array [this vertex-array] (counted :bind-vertex-array [vertex-array] nil))
+  (gl-draw-elements [this mode count type offset] (counted :draw-elements [mode count type offset] nil))
+  (gl-draw-arrays [this mode first count] (counted :draw-arrays [mode first count] nil))
+  (gl-enable [this cap] (counted :enable [cap] nil))
+  (gl-disable [this cap] (counted :disable [cap] nil))
+  (gl-blend-func [this sfactor dfactor] (counted :blend-func [sfactor dfactor] nil))
+  (gl-depth-mask [this flag] (counted :depth-mask [flag] nil))
+  (gl-swap-buffers [this window] (counted :swap-buffers [window] nil))
+  (gl-poll-events [this] (counted :poll-events [] nil))
+  (gl-get-key [this window key] (counted :get-key [window key] GLFW/GLFW_RELEASE))
+  (gl-gen-buffer [this] (counted :gen-buffer [] (.incrementAndGet next-id)))
+  (gl-delete-buffer [this buffer] (counted :delete-buffer [buffer] nil))
+  (gl-buffer-data [this target data usage] (counted :buffer-data [target usage] nil))
+  (gl-buffer-sub-data [this target offset data] (counted :buffer-sub-data [target offset] nil))
+  (gl-gen-vertex-array [this] (counted :gen-vertex-array [] (.incrementAndGet next-id)))
+  (gl-delete-vertex-array [this vertex-array] (counted :delete-vertex-array [vertex-array] nil))
+  (gl-vertex-attrib-pointer [this index size type normalized stride offset]
+    (counted :vertex-attrib-pointer [index size type normalized stride offset] nil))
+  (gl-create-program [this] (counted :create-program [] (.incrementAndGet next-id)))
+  (gl-delete-program [this program] (counted :delete-program [program] nil))
+  (gl-attach-shader [this program shader] (counted :attach-shader [program shader] nil))
+  (gl-link-program [this program] (counted :link-program [program] nil))
+  (gl-get-program-i [this program pname] (counted :get-program-i [program pname] GL11/GL_TRUE))
+  (gl-get-program-info-log [this program] (counted :get-program-info-log [program] ""))
+  (gl-create-shader [this type] (counted :create-shader [type] (.incrementAndGet next-id)))
+  (gl-delete-shader [this shader] (counted :delete-shader [shader] nil))
+  (gl-shader-source [this shader source] (counted :shader-source [shader] nil))
+  (gl-compile-shader [this shader] (counted :compile-shader [shader] nil))
+  (gl-get-shader-i [this shader pname] (counted :get-shader-i [shader pname] GL11/GL_TRUE))
+  (gl-get-shader-info-log [this shader] (counted :get-shader-info-log [shader] ""))
+  (gl-get-uniform-location [this program uniform-name]
+    (counted :get-uniform-location [program uniform-name] (.incrementAndGet next-id)))
+  (gl-get-attrib-location [this program attribute-name]
+    (counted :get-attrib-location [program attribute-name] (.incrementAndGet next-id)))
+  (gl-gen-texture [this] (counted :gen-texture [] (.incrementAndGet next-id)))
+  (gl-delete-texture [this texture] (counted :delete-texture [texture] nil))
+  (gl-tex-parameter-i [this target pname param] (counted :tex-parameter-i [target pname param] nil))
+  (gl-tex-image-2d [this target level internal-format width height format type pixels]
+    (counted :tex-image-2d [target level width height] nil))
+  (gl-get-error [this] (counted :get-error [] GL11/GL_NO_ERROR)))
+
+(defn- headless!
+  "Reading a constant such as GL11/GL_TRUE initialises the GL classes, which loads the
+   GL library unless explicit init is on. Turn it on so the null backend runs on
+   machines without one; game.core/run creates GL itself when it is needed."
+  []
+  (.set Configuration/OPENGL_EXPLICIT_INIT true))
+
+(defn null-gl-backend
+  "Backend that never touches GL or GLFW and only counts calls."
+  []
+  (headless!)
+  (NullGLBackend. (long-array (count gl-call-names)) nil (AtomicInteger.)))
+
+(defn recording-gl-backend
+  "Null backend that also records every call as [call & args]."
+  []
+  (headless!)
+  (NullGLBackend. (long-array (count gl-call-names)) (atom []) (AtomicInteger.)))
+
+(defn recorded-gl-calls [^NullGLBackend backend]
+  @(.calls backend))
+
+(defn gl-call-counts
+  "Calls made since the last reset as {call count}, leaving out calls never made."
+  [^NullGLBackend backend]
+  (let [^longs counts (.counts backend)]
+    (into {} (keep-indexed #(when (pos? (aget counts %1)) [%2 (aget counts %1)]) gl-call-names))))
+
+(defn gl-call-total ^long [^NullGLBackend backend]
+  (let [^longs counts (.counts backend)]
+    (areduce counts i total 0 (+ total (aget counts i)))))
+
+(defn reset-gl-calls [^NullGLBackend backend]
+  (java.util.Arrays/fill ^longs (.counts backend) 0)
+  (when-let [calls (.calls backend)]
+    (reset! calls [])))
+
+(comment
+  (def backend (recording-gl-backend))
+  (with-gl-backend backend
+    (game.core/main-loop 0 (/ 1.0 60)))
+  (gl-call-counts backend)
+  (recorded-gl-calls backend)
+  )
@@ -0,0 +1,85 @@
+(ns game.lod
+  (:require [game.core :refer [window-size]]
+            [game.shaders :refer [create-simple-compiled-mesh create-elements-array
+                                  render-simple-compiled-mesh create-float-buffer]])
+  (:import (game.core Entity)
+           (example.mesh MeshSimplifier LodChain LodLevel LodSelector)
+           (org.joml Matrix4f)
+           (java.nio FloatBuffer)))
+
+(def default-lod-options
+  {:ratio           0.5
+   :min-triangles   64
+   :max-levels      8
+   :max-pixel-error 1.0})
+
+(defn ^LodChain build-lod-chain
+  "Simplifies a Mesh into a chain of index buffers over its original vertices."
+  ([mesh] (build-lod-chain mesh {}))
+  ([mesh options]
+   (let [{:keys [ratio min-triangles max-levels]} (merge default-lod-options options)]
+     (MeshSimplifier/build ^floats (:positions mesh) ^ints (:triangles mesh)
+                           (float ratio) (int min-triangles) (int max-levels)))))
+
+(defn build-lod-chains
+  "Simplifies the meshes in parallel, returning a LodChain per mesh."
+  ([meshes] (build-lod-chains meshes {}))
+  ([meshes options]
+   (let [{:keys [ratio min-triangles max-levels]} (merge default-lod-options options)]
+     (vec (MeshSimplifier/buildAll (mapv :positions meshes) (mapv :triangles meshes)
+                                   (float ratio) (int min-triangles) (int max-levels))))))
+
+(defn lod-levels [^LodChain chain]
+  (mapv (fn [^LodLevel level] {:triangles (.getTriangleCount level) :error (.error level)})
+        (.levels chain)))
+
+(defrecord LodCompiledMesh [mesh ^LodChain chain levels])
+
+(defn create-lod-compiled-mesh
+  "Compiles the mesh and an element buffer per coarser level. Must run on the GL thread."
+  [renderer mesh ^LodChain chain]
+  (let [compiled (create-simple-compiled-mesh renderer mesh)]
+    (LodCompiledMesh.
+      compiled
+      chain
+      (into [{:elements-array (:elements-array compiled) :num-elements (:num-elements compiled)}]
+            (for [^LodLevel level (rest (.levels chain))]
+              {:elements-array (create-elements-array (.triangles level))
+               :num-elements   (alength ^ints (.triangles level))})))))
+
+(defrecord LodScene
+  [^FloatBuffer view-fb
+   ^FloatBuffer model-fb
+   ^Matrix4f projection-view-tr
+   ^Matrix4f projection-tr
+   ^Matrix4f view-tr
+   ^Matrix4f model-tr
+   ^LodCompiledMesh lod-mesh
+   ^LodSelector selector
+   current-level
+   controllers]
+  Entity
+  (render-entity [self window]
+    (let [[_ height] @window-size
+          level (.select selector (:chain lod-mesh) projection-tr view-tr model-tr (float height))
+          {:keys [elements-array num-elements]} (nth (:levels lod-mesh) level)]
+      (reset! current-level level)
+      (-> projection-view-tr .identity (.mul projection-tr) (.mul view-tr) (.get view-fb))
+      (-> model-tr (.get model-fb))
+      (render-simple-compiled-mesh view-fb model-fb (:mesh lod-mesh) elements-array num-elements)))
+  (update-entity [self window delta-time] (doall (map #(% self window delta-time) (deref controllers)))))
+
+(defn create-lod-scene
+  ([projection-tr view-tr model-tr lod-mesh]
+   (create-lod-scene projection-tr view-tr model-tr lod-mesh (:max-pixel-error default-lod-options)))
+  ([projection-tr view-tr model-tr lod-mesh max-pixel-error]
+   (LodScene. (create-float-buffer 16) (create-float-buffer 16) (new Matrix4f)
+              projection-tr view-tr model-tr lod-mesh (LodSelector. (float max-pixel-error))
+              (atom 0) (ref []))))
+
+(comment
+  (def chain (build-lod-chain triangle-mesh {:min-triangles 1}))
+  (lod-levels chain)
+  (def lod-mesh (gl-run (create-lod-compiled-mesh simple-renderer triangle-mesh chain)))
+  (entity-list-add (create-lod-scene (mat4-frustum -1 1 -1 1 1 1000) (mat4-ident) (mat4-scale 4 4 1) lod-mesh))
+  )
@@ -0,0 +1,247 @@
+(ns game.macrobench
+  (:require [clojure.string :as string]
+            [game.core :refer [main-loop entity-list global-window]]
+            [game.task-queue :refer [queue-action read-execute-action take-actions requeue-actions]]
+            [game.gl :refer [with-gl-backend null-gl-backend gl-call-names gl-call-total reset-gl-calls]]
+            [game.shaders :refer [create-mesh create-simple-renderer create-simple-compiled-mesh
+                                  create-simple-scene create-texture map->Image byte-buffer mat4-frustum
+                                  scene-add-controller scene-translate rotation-controller move-controller
+                                  vec3 buffer-pool-stats]])
+  (:import (game.gl NullGLBackend)
+           (java.lang.management ManagementFactory GarbageCollectorMXBean)
+           (java.io StringWriter)
+           (org.joml Matrix4f)))
+
+;; Headless frame replay. Builds a scene of SimpleScene entities over the null
+;; GL backend, runs main-loop for a fixed number of frames and reports CPU time,
+;; GL calls and heap allocation per frame as JSON, so frame cost regressions
+;; show up on machines without a GPU.
+;;
+;; Run with: lein run -m game.macrobench [option value ...]
+;;   e.g. lein run -m game.macrobench entities 2000 controllers rotation frames 1000 out target/frame.json
+
+(def default-options
+  {:meshes          16
+   :grid            8
+   :texture-size    64
+   :entities        500
+   :controllers     [:rotation :move]
+   :queue-task      true
+   :warmup          200
+   :frames          600
+   :delta-time      (/ 1.0 60)})
+
+(def controllers
+  {:rotation rotation-controller
+   :move     move-controller})
+
+(defn grid-mesh
+  "A flat grid of n by n quads in the unit square."
+  [n texture]
+  (let [side (inc n)]
+    (create-mesh
+      {:positions (for [y (range side) x (range side) v [(/ x n) (/ y n) 0]] (float v))
+       :normals   (for [_ (range (* side side)) v [0 0 1]] v)
+       :uv        (for [y (range side) x (range side) v [(/ x n) (/ y n)]] (float v))
+       :triangles (for [y (range n) x (range n)
+                        :let [i (+ x (* y side))]
+                        v [i (inc i) (+ i side) (inc i) (+ i side 1) (+ i side)]]
+                    v)
+       :texture   texture})))
+
+(defn checker-image [size]
+  (map->Image {:width  size
+               :height size
+               :rgba   (byte-buffer (byte-array (for [y (range size) x (range size) c [(* 4 x) (* 4 y) 128 255]]
+                                                  (unchecked-byte c))))}))
+
+(defn build-scene
+  "Creates the renderer, meshes and entities for options on the current GL backend
+   and returns the entities."
+  [{:keys [meshes grid texture-size entities] :as options}]
+  ;; Shader compilation and mesh binding print as they go; keep that out of the report.
+  (binding [*out* (StringWriter.)]
+    (let [renderer (create-simple-renderer)
+          compiled (vec (for [_ (range meshes)]
+                          (create-simple-compiled-mesh
+                            renderer (grid-mesh grid (create-texture (checker-image texture-size))))))
+          projection-tr (mat4-frustum -1 1 -1 1 1 1000)
+          columns (long (Math/ceil (Math/sqrt entities)))]
+      (vec (for [i (range entities)]
+             (let [model-tr (-> (Matrix4f.) (.translate (float (- (mod i columns) (/ columns 2)))
+                                                        (float (- (quot i columns) (/ columns 2)))
+                                                        (float -20)))
+                   scene (create-simple-scene projection-tr (Matrix4f.) model-tr (compiled (mod i meshes)))]
+               (doseq [controller (:controllers options)]
+                 (scene-add-controller scene (controllers controller)))
+               scene))))))
+
+(defn- thread-allocated-bytes
+  "Heap bytes allocated so far by the current thread, or nil when the JVM cannot tell."
+  []
+  (let [mx (ManagementFactory/getThreadMXBean)]
+    (when (and (instance? com.sun.management.ThreadMXBean mx)
+               (.isThreadAllocatedMemorySupported ^com.sun.management.ThreadMXBean mx))
+      (.getThreadAllocatedBytes ^com.sun.management.ThreadMXBean mx (.getId (Thread/currentThread))))))
+
+(defn- gc-totals []
+  (reduce (fn [[collections ms] ^GarbageCollectorMXBean gc]
+            [(+ collections (max 0 (.getCollectionCount gc))) (+ ms (max 0 (.getCollectionTime gc)))])
+          [0 0] (ManagementFactory/getGarbageCollectorMXBeans)))
+
+(defn percentiles
+  "Mean, max and nearest rank percentiles of samples, or nil when there are none."
+  [samples]
+  (let [sorted (vec (sort samples))
+        n (count sorted)
+        rank (fn [p] (sorted (max 0 (dec (long (Math/ceil (* p n)))))))]
+    (when (pos? n)
+      {:mean (/ (reduce + sorted) (double n))
+       :p50  (rank 0.5)
+       :p90  (rank 0.9)
+       :p99  (rank 0.99)
+       :max  (peek sorted)})))
+
+(defn replay-frames
+  "Runs main-loop warmup + frames times against the NullGLBackend already installed,
+   measuring each of the last frames. Work the harness itself does, such as queueing
+   the per-frame task, happens outside the measured span."
+  [^NullGLBackend backend entities {:keys [warmup frames delta-time queue-task]}]
+  (let [^longs call-totals (long-array (count gl-call-names))
+        ^longs counts (.counts backend)
+        frame-ns (long-array frames)
+        frame-calls (long-array frames)
+        frame-bytes (long-array frames)
+        ;; Reading the allocation counter allocates a little; measure that to subtract it.
+        probe-bytes (let [a (thread-allocated-bytes) b (thread-allocated-bytes)] (when a (- b a)))
+        view-step (vec3 0 0 0.001)]
+    (dotimes [frame (+ warmup frames)]
+      (when (and queue-task (seq entities))
+        (queue-action #(scene-translate (entities (mod frame (count entities))) view-step)))
+      (reset-gl-calls backend)
+      (let [start-bytes (thread-allocated-bytes)
+            start (System/nanoTime)]
+        (main-loop 0 delta-time)
+        (let [elapsed (- (System/nanoTime) start)
+              end-bytes (thread-allocated-bytes)
+              i (- frame warmup)]
+          (when (>= i 0)
+            (aset frame-ns i elapsed)
+            (aset frame-calls i (gl-call-total backend))
+            (when probe-bytes
+              (aset frame-bytes i (max 0 (- end-bytes start-bytes probe-bytes))))
+            (dotimes [c (alength counts)]
+              (aset call-totals c (+ (aget call-totals c) (aget counts c))))))))
+    {:frame-ns    (vec frame-ns)
+     :frame-calls (vec frame-calls)
+     :frame-bytes (when probe-bytes (vec frame-bytes))
+     :call-totals (into (sorted-map) (keep-indexed #(when (pos? (aget call-totals %1))
+                                                       [%2 (/ (aget call-totals %1) (double frames))])
+                                                   gl-call-names))}))
+
+(defn run-benchmark
+  "Builds a scene for options (merged over default-options), replays it headlessly and
+   returns the report map. The entity list and window are restored afterwards. Tasks
+   queued before the run are held back and requeued after it, so none are lost."
+  ([] (run-benchmark {}))
+  ([options]
+   (let [options (merge default-options options)
+         _ (when (< (:frames options) 1)
+             (throw (IllegalArgumentException. (str "frames must be at least 1, got " (:frames options)))))
+         backend (null-gl-backend)
+         saved-entities @entity-list
+         saved-window @global-window
+         saved-tasks (take-actions)]
+     (with-gl-backend backend
+       (try
+         (let [entities (build-scene options)
+               _ (dosync (ref-set entity-list entities))
+               [gc-count gc-ms] (gc-totals)
+               pool-before (:bytes-allocated (buffer-pool-stats))
+               {:keys [frame-ns frame-calls frame-bytes call-totals]} (replay-frames backend entities options)
+               [gc-count-after gc-ms-after] (gc-totals)]
+           ;; Run whatever the last frames queued so no caller is left waiting.
+           (while (read-execute-action))
+           {:scene                     (select-keys options [:meshes :grid :texture-size :entities :controllers :queue-task])
+            :triangles-per-frame       (* (:entities options) 2 (:grid options) (:grid options))
+            :warmup                    (:warmup options)
+            :frames                    (:frames options)
+            :ms-per-frame              (percentiles (map #(/ % 1e6) frame-ns))
+            :gl-calls-per-frame        (assoc (percentiles frame-calls) :by-call call-totals)
+            :allocated-bytes-per-frame (when frame-bytes (percentiles frame-bytes))
+            :direct-bytes-allocated    (- (:bytes-allocated (buffer-pool-stats)) pool-before)
+            :gc                        {:collections (- gc-count-after gc-count) :ms (- gc-ms-after gc-ms)}
+            :jvm                       {:version (System/getProperty "java.version")
+                                        :cores   (.availableProcessors (Runtime/getRuntime))}})
+         (finally
+           (dosync (ref-set entity-list saved-entities)
+                   (ref-set global-window saved-window))
+           (requeue-actions saved-tasks)))))))
+
+(defn json
+  "Minimal JSON writer for the report: maps, sequences, strings, keywords, numbers, booleans and nil."
+  [x]
+  (cond
+    (map? x) (str "{" (string/join "," (map (fn [[k v]] (str (json (name k)) ":" (json v))) x)) "}")
+    (or (sequential? x) (set? x)) (str "[" (string/join "," (map json x)) "]")
+    (keyword? x) (json (name x))
+    (string? x) (str "\"" (string/escape x {\" "\\\"" \\ "\\\\" \newline "\\n"}) "\"")
+    (float? x) (if (or (Double/isNaN x) (Double/isInfinite x))
+                 "null"
+                 (String/format java.util.Locale/ROOT "%.3f" (to-array [(double x)])))
+    (ratio? x) (json (double x))
+    (nil? x) "null"
+    :else (str x)))
+
+(def option-names
+  (conj (set (keys default-options)) :out))
+
+(defn parse-options
+  "Command line words as option value pairs: numbers for counts, a comma separated list
+   for controllers (possibly empty), true/false for queue-task and a path for out.
+   Throws IllegalArgumentException naming the option for unknown options, controllers and
+   bad numbers."
+  [args]
+  (when (odd? (count args))
+    (throw (IllegalArgumentException. (str "Missing value for option " (last args)))))
+  (into {} (for [[k v] (partition 2 args)
+                 :let [option (keyword k)]]
+             (do
+               (when-not (option-names option)
+                 (throw (IllegalArgumentException.
+                          (str "Unknown option " k ", expected one of "
+                               (string/join " " (sort (map name option-names)))))))
+               [option (try
+                         (case option
+                           :controllers (let [names (mapv keyword (remove empty? (string/split v #",")))]
+                                          (when-let [unknown (seq (remove controllers names))]
+                                            (throw (IllegalArgumentException.
+                                                     (str "Unknown controller " (name (first unknown))
+                                                          ", expected one of "
+                                                          (string/join " " (sort (map name (keys controllers))))))))
+                                          names)
+                           :queue-task (Boolean/parseBoolean v)
+                           :out v
+                           :delta-time (Double/parseDouble v)
+                           (Long/parseLong v))
+                         (catch NumberFormatException e
+                           (throw (IllegalArgumentException. (str "Option " k " expects a number, got " v) e))))]))))
+
+(defn -main [& args]
+  (try
+    (let [options (parse-options args)
+          report (json (run-benchmark (dissoc options :out)))]
+      (if-let [out (:out options)]
+        (spit out report)
+        (println report)))
+    (catch IllegalArgumentException e
+      (binding [*out* *err*]
+        (println (.getMessage e)))
+      (shutdown-agents)
+      (System/exit 1)))
+  (shutdown-agents))
+
+(comment
+  (run-benchmark {:entities 100 :frames 100 :warmup 50})
+  (println (json (run-benchmark {:entities 2000 :controllers []})))
+  )
@@ -0,0 +1,159 @@
+(ns game.particles
+  (:require [game.shaders :refer [compile-shader compile-program use-program get-uniform-location
+                                  set-uniform-mat4-matrix create-glbuffer create-glvertexarray
+                                  gl-id]]
+            [game.core :refer [frame-arena]]
+            [game.gl :refer :all])
+  (:import (game.core Entity)
+           (game.shaders GLProgram GLBuffer GLVertexArray)
+           (example.particles ParticleSystem ParticleEmitter)
+           (org.lwjgl.opengl GL11 GL15 GL20 GL32)
+           (org.joml Matrix4f)))
+
+(defn particle-rgba
+  "Packs a colour for ParticleEmitter and ParticleSystem, each channel 0 to 255."
+  [r g b a]
+  (ParticleSystem/rgba r g b a))
+
+(defn ^ParticleSystem create-particle-system
+  "A system holding at most capacity particles. Options :gravity [x y z] and :drag.
+   Its vertex buffer, capacity * VERTEX_BYTES, comes from the shared buffer pool and is
+   owned by the caller: hand the system to release-particle-system when done with it."
+  ([capacity] (create-particle-system capacity {}))
+  ([capacity options]
+   (let [{:keys [gravity drag] :or {gravity [0 -9.81 0] drag 0}} options
+         system (ParticleSystem. (int capacity))
+         [gx gy gz] gravity]
+     (set! (.gravityX system) (float gx))
+     (set! (.gravityY system) (float gy))
+     (set! (.gravityZ system) (float gz))
+     (set! (.drag system) (float drag))
+     system)))
+
+(defn release-particle-system
+  "Returns the system's vertex buffer to the pool. The system must not be used afterwards."
+  [^ParticleSystem system]
+  (.release system))
+
+(defn ^ParticleEmitter create-emitter
+  [{:keys [position direction spread speed life color color-jitter]
+    :or   {position [0 0 0] direction [0 1 0] spread 0.3 speed [1 2] life [1 2]
+           color [255 255 255 255] color-jitter 0}}]
+  (let [[x y z] position
+        [dx dy dz] direction
+        [speed-min speed-max] speed
+        [life-min life-max] life]
+    (-> (ParticleEmitter.)
+        (.at (float x) (float y) (float z))
+        (.direction (float dx) (float dy) (float dz) (float spread))
+        (.speed (float speed-min) (float speed-max))
+        (.life (float life-min) (float life-max))
+        (.color (int (apply particle-rgba color)) (int color-jitter)))))
+
+(defn emit-particles
+  "Emits rate particles per second over delta-time, carrying the fraction in the pending atom."
+  [^ParticleSystem system ^ParticleEmitter emitter rate pending delta-time]
+  (let [due (swap! pending + (* rate delta-time))
+        n (long due)]
+    (when (pos? n)
+      (swap! pending - n)
+      (.emit system emitter (int n)))))
+
+(defrecord ParticleRenderer [^GLProgram program view-tr-binding point-size-binding])
+
+(defn create-particle-renderer []
+  (let [program (compile-program [(compile-shader "particle-vert.glsl" GL20/GL_VERTEX_SHADER)
+                                  (compile-shader "particle-frag.glsl" GL20/GL_FRAGMENT_SHADER)])]
+    (ParticleRenderer. program
+                       (get-uniform-location program "view_tr")
+                       (get-uniform-location program "point_size"))))
+
+(defn render-particles
+  "Streams the live vertices into the buffer and draws them as one batch of points."
+  [particles]
+  (let [{:keys [^ParticleSystem system renderer vertex-array buffer
+                ^Matrix4f projection-view-tr ^Matrix4f projection-tr ^Matrix4f view-tr
+                point-size]} particles
+        {:keys [program view-tr-binding point-size-binding]} renderer
+        n (.getVertexCount system)]
+    (when (pos? n)
+      (use-program program)
+      (set-uniform-mat4-matrix view-tr-binding
+                               (-> projection-view-tr .identity (.mul projection-tr) (.mul view-tr)
+                                   (.get (.allocateFloats frame-arena 16))))
+      (let [gl @gl-backend]
+        (gl-uniform1f gl point-size-binding point-size)
+        (gl-bind-buffer gl GL15/GL_ARRAY_BUFFER (gl-id buffer))
+        (gl-buffer-data gl GL15/GL_ARRAY_BUFFER (long (* (.capacity system) ParticleSystem/VERTEX_BYTES)) GL15/GL_STREAM_DRAW)
+        (gl-buffer-sub-data gl GL15/GL_ARRAY_BUFFER 0 (.getVertices system))
+        (gl-bind-vertex-array gl (gl-id vertex-array))
+        (gl-enable gl GL32/GL_PROGRAM_POINT_SIZE)
+        (gl-enable gl GL11/GL_BLEND)
+        (gl-blend-func gl GL11/GL_SRC_ALPHA GL11/GL_ONE)
+        (gl-depth-mask gl false)
+        (gl-draw-arrays gl GL11/GL_POINTS 0 n)
+        (gl-depth-mask gl true)
+        (gl-disable gl GL11/GL_BLEND)
+        (gl-bind-vertex-array gl 0)))))
+
+(defrecord ParticleEntity
+  [^ParticleSystem system ^ParticleEmitter emitter rate pending
+   ^ParticleRenderer renderer ^GLVertexArray vertex-array ^GLBuffer buffer
+   ^Matrix4f projection-view-tr ^Matrix4f projection-tr ^Matrix4f view-tr point-size]
+  Entity
+  (update-entity [self window delta-time]
+    (emit-particles system emitter rate pending delta-time)
+    (.update system (float delta-time)))
+  (render-entity [self window]
+    (render-particles self)))
+
+(defn create-particle-entity
+  "One Entity drawing every particle of system, emitting rate particles per second.
+   The entity takes over the system; release both with dispose-particle-entity.
+   Must run on the GL thread."
+  [^ParticleRenderer renderer ^ParticleSystem system ^ParticleEmitter emitter rate projection-tr view-tr point-size]
+  (let [gl @gl-backend
+        vertex-array (create-glvertexarray)
+        buffer (create-glbuffer)
+        stride ParticleSystem/VERTEX_BYTES]
+    (gl-bind-vertex-array gl (gl-id vertex-array))
+    (gl-bind-buffer gl GL15/GL_ARRAY_BUFFER (gl-id buffer))
+    (gl-buffer-data gl GL15/GL_ARRAY_BUFFER (long (* (.capacity system) stride)) GL15/GL_STREAM_DRAW)
+    (gl-vertex-attrib-pointer gl 0 3 GL11/GL_FLOAT false stride 0)
+    (gl-vertex-attrib-pointer gl 1 4 GL11/GL_UNSIGNED_BYTE true stride 12)
+    (gl-enable-vertex-attrib-array gl 0)
+    (gl-enable-vertex-attrib-array gl 1)
+    (gl-bind-vertex-array gl 0)
+    (map->ParticleEntity
+      {:system             system
+       :emitter            emitter
+       :rate               rate
+       :pending            (atom 0.0)
+       :renderer           renderer
+       :vertex-array       vertex-array
+       :buffer             buffer
+       :projection-view-tr (Matrix4f.)
+       :projection-tr      projection-tr
+       :view-tr            view-tr
+       :point-size         point-size})))
+
+(defn dispose-particle-entity
+  "Releases the entity's particle system. Call once the entity is off the entity list."
+  [^ParticleEntity entity]
+  (release-particle-system (:system entity)))
+
+(comment
+  (def fountain (create-particle-system 1000000 {:drag 0.1}))
+  (def fountain-entity
+    (game.task-queue/gl-run
+      (create-particle-entity (create-particle-renderer) fountain
+                              (create-emitter {:direction [0 1 0] :spread 0.4 :speed [4 8] :life [1 2]
+                                               :color [255 160 40 255] :color-jitter 30})
+                              400000
+                              (game.shaders/mat4-frustum -1 1 -1 1 1 100)
+                              (-> (Matrix4f.) (.translate (float 0) (float -3) (float -12)))
+                              40)))
+  (game.core/entity-list-add fountain-entity)
+  (game.core/entity-list-delete #(identical? % fountain-entity))
+  (dispose-particle-entity fountain-entity)
+  )
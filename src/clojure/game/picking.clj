@@ -0,0 +1,82 @@
+(ns game.picking
+  (:require [game.core :refer [get-window-size]])
+  (:import (example.mesh TriangleBvh RayHit)
+           (org.joml Matrix4f Matrix4fc Vector3f)
+           (org.lwjgl.glfw GLFW)))
+
+(def parallel-build-triangles
+  "Meshes with more triangles than this build their BVH on the ForkJoin pool."
+  100000)
+
+(defn ^TriangleBvh create-mesh-bvh
+  "Builds a BVH over the positions and triangles of a Mesh."
+  [mesh]
+  (let [^ints triangles (:triangles mesh)]
+    (TriangleBvh. ^floats (:positions mesh) triangles
+                  (> (quot (alength triangles) 3) parallel-build-triangles))))
+
+(defrecord Ray [^Vector3f origin ^Vector3f direction])
+
+(defn screen-ray
+  "World-space ray through window pixel x, y (origin top left, as GLFW reports it)."
+  [^Matrix4f projection-tr ^Matrix4f view-tr x y width height]
+  (let [origin (Vector3f.)
+        direction (Vector3f.)]
+    (-> (Matrix4f. projection-tr)
+        (.mul view-tr)
+        (.unprojectRay (float x) (float (- height y)) (int-array [0 0 width height]) origin direction))
+    (Ray. origin direction)))
+
+(defn cursor-ray
+  "Ray under the mouse cursor. Must be called on the GL thread."
+  [window projection-tr view-tr]
+  (let [x (double-array 1)
+        y (double-array 1)
+        [width height] (get-window-size window)]
+    (GLFW/glfwGetCursorPos (long window) x y)
+    (screen-ray projection-tr view-tr (aget x 0) (aget y 0) width height)))
+
+(defn- inverse [^Matrix4fc model-tr]
+  (.invert (Matrix4f. model-tr)))
+
+(defn pick
+  "Closest hit of ray against targets, maps with :bvh and :model-tr. Returns the
+   target with :t, :triangle, :u and :v added, or nil if nothing is hit."
+  [targets ^Ray ray]
+  (let [^Vector3f o (:origin ray)
+        ^Vector3f d (:direction ray)
+        hit (.reset (RayHit.) Float/POSITIVE_INFINITY)]
+    (reduce
+      (fn [best target]
+        (if (.closestHit ^TriangleBvh (:bvh target) (inverse (:model-tr target))
+                         (.x o) (.y o) (.z o) (.x d) (.y d) (.z d) hit)
+          (assoc target :t (.t hit) :triangle (.triangle hit) :u (.u hit) :v (.v hit))
+          best))
+      nil
+      targets)))
+
+(defn occluded?
+  "True if anything in targets lies on the ray before max-t."
+  [targets ^Ray ray max-t]
+  (let [^Vector3f o (:origin ray)
+        ^Vector3f d (:direction ray)]
+    (boolean
+      (some #(.anyHit ^TriangleBvh (:bvh %) (inverse (:model-tr %))
+                      (.x o) (.y o) (.z o) (.x d) (.y d) (.z d) (float max-t))
+            targets))))
+
+(defn cast-rays
+  "Closest hits for many world-space rays against one target, run in parallel.
+   rays holds origin and direction, six floats per ray. Returns {:t floats :triangle ints}."
+  [target ^floats rays]
+  (let [n (quot (alength rays) 6)
+        t (float-array n)
+        triangle (int-array n)]
+    (.closestHits ^TriangleBvh (:bvh target) (inverse (:model-tr target)) rays t triangle)
+    {:t t :triangle triangle}))
+
+(comment
+  (def stone-bvh (create-mesh-bvh triangle-mesh))
+  (gl-run (pick [{:bvh stone-bvh :model-tr (:model-tr simple-scene) :name :stone}]
+                (cursor-ray (deref game.core/global-window) (:projection-tr simple-scene) (:view-tr simple-scene))))
+  )
@@ -1,107 +1,155 @@
 (ns game.shaders
-  (:require [clojure.java.io :as io])
-  (:use [game.task-queue :only [gl-run]])
+  (:require [clojure.java.io :as io]
+            [game.gl :refer :all])
+  (:use [game.task-queue :only [gl-run queue-action]])
   (:use [game.core :only [main entity-list-add entity-list-set entity-list-clear]])
   (:import
     (org.lwjgl.opengl GL GL11 GL20 GL15 GL30 GL13)
     (java.awt.image BufferedImage)
     (javax.imageio ImageIO)
     (game.core Entity)
+    (game.gl NullGLBackend)
     (org.joml Matrix4f Vector4f Vector3f Vector3fc)
     (java.nio ByteBuffer FloatBuffer)
+    (example.buffers DirectBufferPool FloatArrayBuilder IntArrayBuilder)
+    (example.math Utils)
     (org.lwjgl BufferUtils)
     (org.lwjgl.glfw GLFW)))
 
 
 
-(defn byte-buffer [bytes]
+(def ^DirectBufferPool buffer-pool DirectBufferPool/DEFAULT)
+
+(def ^:private int-array-class (class (int-array 0)))
+
+(defn byte-buffer
+  "A direct buffer holding bytes, reclaimed by the GC along with its owner."
+  [bytes]
   (let [buf (BufferUtils/createByteBuffer (count bytes))]
-    (.put buf bytes)
+    (.put buf ^bytes bytes)
     (.flip buf)
     buf))
 
+(defn pooled-byte-buffer
+  "Like byte-buffer but taken from the pool; the caller must hand it to release-buffer."
+  [bytes]
+  (Utils/toByteBuffer buffer-pool ^bytes bytes))
+
+(defn staging-buffer
+  "Copies a float[] or int[] into a pooled buffer for one upload; hand it to release-buffer after."
+  [data]
+  (if (instance? int-array-class data)
+    (Utils/toIntBuffer buffer-pool ^ints data)
+    (Utils/toFloatBuffer buffer-pool ^floats data)))
+
 (defn create-float-buffer [size]
   (BufferUtils/createFloatBuffer size))
 
+(defn release-buffer
+  "Returns a buffer from pooled-byte-buffer or staging-buffer to the pool."
+  [buffer]
+  (.release buffer-pool buffer))
+
+(defn buffer-pool-stats []
+  {:bytes-live      (.getBytesLive buffer-pool)
+   :peak-bytes-live (.getPeakBytesLive buffer-pool)
+   :bytes-recycled  (.getBytesRecycled buffer-pool)
+   :bytes-allocated (.getBytesAllocated buffer-pool)
+   :bytes-pooled    (.getBytesPooled buffer-pool)
+   :bytes-collected (.getBytesCollected buffer-pool)
+   :outstanding     (.getOutstandingCount buffer-pool)})
+
 (defprotocol GLResource
   (gl-id ^Integer [this]))
 
 (defmacro def-gl-type [name create-fn dispose-fn]
   `(do
-     (deftype ~name [id#]
+     (deftype ~name [id# backend#]
        Object
        (finalize [this#]
-         (gl-run
-           (println "Deleting" ~(str name) id#)
-           (~dispose-fn id#)))
+         ;; Queue the delete without waiting: the finalizer thread must not block on the
+         ;; GL thread. Null backend handles own nothing, and deleting them would put calls
+         ;; into a replay whenever the GC happens to run.
+         (when-not (instance? NullGLBackend backend#)
+           (queue-action
+             (fn []
+               (println "Deleting" ~(str name) id#)
+               (~dispose-fn backend# id#)))))
        GLResource
        (gl-id [this#] id#))
      (defn ~(symbol (str "create-" (clojure.string/lower-case name))) [& rest#]
-       (new ~name (apply ~create-fn rest#)))))
+       ;; The resource keeps the backend that made it so it is deleted there.
+       (let [backend# @gl-backend]
+         (new ~name (apply ~create-fn backend# rest#) backend#)))))
 
 (def-gl-type
   GLBuffer
-  #(GL15/glGenBuffers)
-  GL15/glDeleteBuffers)
+  gl-gen-buffer
+  gl-delete-buffer)
 
 (def-gl-type
   GLProgram
-  #(GL20/glCreateProgram)
-  GL20/glDeleteProgram)
+  gl-create-program
+  gl-delete-program)
 
 (defn use-program [program]
-  (GL20/glUseProgram (gl-id program)))
+  (gl-use-program @gl-backend (gl-id program)))
 
 (def-gl-type
   GLShader
-  (fn [type] (GL20/glCreateShader type))
-  GL20/glDeleteShader)
+  gl-create-shader
+  gl-delete-shader)
 
 (def-gl-type
   GLVertexArray
-  #(GL30/glGenVertexArrays)
-  GL30/glDeleteVertexArrays)
+  gl-gen-vertex-array
+  gl-delete-vertex-array)
 
 (def-gl-type
   GLTexture
-  #(GL11/glGenTextures)
-  GL11/glDeleteTextures)
+  gl-gen-texture
+  gl-delete-texture)
 
 (defn compile-program [shaders]
-  (let [program (create-glprogram)]
+  (let [gl @gl-backend
+        program (create-glprogram)]
     (doall (for [shader shaders]
-             (GL20/glAttachShader (gl-id program) (gl-id shader))))
-    (GL20/glLinkProgram (gl-id program))
-    (when (= GL11/GL_FALSE (GL20/glGetProgrami (gl-id program) GL20/GL_LINK_STATUS))
+             (gl-attach-shader gl (gl-id program) (gl-id shader))))
+    (gl-link-program gl (gl-id program))
+    (when (= GL11/GL_FALSE (gl-get-program-i gl (gl-id program) GL20/GL_LINK_STATUS))
       (throw (RuntimeException.
-               (str "Unable to link program: (" (GL11/glGetError) ")" (GL20/glGetProgramInfoLog (gl-id program) 40960)))))
+               (str "Unable to link program: (" (gl-get-error gl) ")" (gl-get-program-info-log gl (gl-id program))))))
     program))
 
 (defn compile-shader [^String filename ^Integer type]
-  (let [shader (create-glshader type)
+  (let [gl @gl-backend
+        shader (create-glshader type)
         shader-code (slurp (io/resource filename))]
     (println "Compiling " shader-code)
-    (GL20/glShaderSource (gl-id shader) shader-code)
-    (GL20/glCompileShader (gl-id shader))
-    (when (= GL11/GL_FALSE (GL20/glGetShaderi (gl-id shader) GL20/GL_COMPILE_STATUS))
+    (gl-shader-source gl (gl-id shader) shader-code)
+    (gl-compile-shader gl (gl-id shader))
+    (when (= GL11/GL_FALSE (gl-get-shader-i gl (gl-id shader) GL20/GL_COMPILE_STATUS))
       (throw (RuntimeException.
-               (str "Unable to compile program: " (GL20/glGetShaderInfoLog (gl-id shader) 4096)))))
+               (str "Unable to compile program: " (gl-get-shader-info-log gl (gl-id shader))))))
     shader))
 
 (defn get-uniform-location [^GLProgram program ^String uniform-name]
-  (GL20/glGetUniformLocation (gl-id program) uniform-name))
+  (gl-get-uniform-location @gl-backend (gl-id program) uniform-name))
 
 (defn set-uniform-mat4-matrix [^Integer location ^FloatBuffer fb]
   "Set uniform in column major order - columns are contiguous"
   (when (not (= -1 location))
-      (GL20/glUniformMatrix4fv location false fb)))
+      (gl-uniform-matrix4fv @gl-backend location false fb)))
 
 (defn load-image-resource [^String resource-path]
   (ImageIO/read (io/resource resource-path)))
 
 (defrecord Image [^Integer width ^Integer height ^ByteBuffer rgba])
 
-(defn ^Image create-image [^BufferedImage image]
+(defn ^Image create-image
+  "to-buffer turns the pixel bytes into the rgba buffer, byte-buffer unless given."
+  ([^BufferedImage image] (create-image image byte-buffer))
+  ([^BufferedImage image to-buffer]
   (let [
         width (.getWidth image)
         height (.getHeight image)
@@ -118,18 +166,19 @@
              (.getSample alphaRaster x (- height y 1) 2)
              255)
            ])]
-    (new Image width height (-> bytes flatten byte-array byte-buffer))
-    ))
+    (new Image width height (-> bytes flatten byte-array to-buffer))
+    )))
 
 (defn ^GLTexture create-texture [^Image image]
   (let [{:keys [^Integer width ^Integer height ^ByteBuffer rgba]} image
+        gl @gl-backend
         texture (create-gltexture)]
-    (GL11/glBindTexture GL11/GL_TEXTURE_2D (gl-id texture))
-    (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_MIN_FILTER GL11/GL_LINEAR)
-    (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_MAG_FILTER GL11/GL_LINEAR)
-    (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_WRAP_S GL11/GL_REPEAT)
-    (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_WRAP_T GL11/GL_REPEAT)
-    (GL11/glTexImage2D GL11/GL_TEXTURE_2D 0 GL11/GL_RGBA width height 0 GL11/GL_RGBA GL11/GL_UNSIGNED_BYTE rgba)
+    (gl-bind-texture gl GL11/GL_TEXTURE_2D (gl-id texture))
+    (gl-tex-parameter-i gl GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_MIN_FILTER GL11/GL_LINEAR)
+    (gl-tex-parameter-i gl GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_MAG_FILTER GL11/GL_LINEAR)
+    (gl-tex-parameter-i gl GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_WRAP_S GL11/GL_REPEAT)
+    (gl-tex-parameter-i gl GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_WRAP_T GL11/GL_REPEAT)
+    (gl-tex-image-2d gl GL11/GL_TEXTURE_2D 0 GL11/GL_RGBA width height GL11/GL_RGBA GL11/GL_UNSIGNED_BYTE rgba)
     texture
     ))
 
@@ -137,12 +186,14 @@
   [positions normals uv triangles texture])
 
 (defn draw-elements [^GLBuffer elements-array ^Integer num-elements]
-  (GL15/glBindBuffer GL15/GL_ELEMENT_ARRAY_BUFFER (gl-id elements-array))
-  (GL11/glDrawElements GL11/GL_TRIANGLES num-elements GL11/GL_UNSIGNED_INT 0))
+  (let [gl @gl-backend]
+    (gl-bind-buffer gl GL15/GL_ELEMENT_ARRAY_BUFFER (gl-id elements-array))
+    (gl-draw-elements gl GL11/GL_TRIANGLES num-elements GL11/GL_UNSIGNED_INT 0)))
 
 (defn bind-texture [^GLTexture texture texture-index]
-  (GL13/glActiveTexture (+ GL13/GL_TEXTURE0 texture-index))
-  (GL11/glBindTexture GL11/GL_TEXTURE_2D (gl-id texture)))
+  (let [gl @gl-backend]
+    (gl-active-texture gl (+ GL13/GL_TEXTURE0 texture-index))
+    (gl-bind-texture gl GL11/GL_TEXTURE_2D (gl-id texture))))
 
 (defrecord SimpleRendererBindings
   [view-tr-binding model-tr-binding pos-binding normal-binding uv-binding])
@@ -156,11 +207,13 @@
 
 (defn bind-attribute-array [binding]
   (when (not (= -1 binding))
-    (GL20/glEnableVertexAttribArray binding)))
+    (gl-enable-vertex-attrib-array @gl-backend binding)))
 
 (defn render-simple-compiled-mesh
-  [^Matrix4f view-tr ^Matrix4f model-tr ^SimpleCompiledMesh mesh]
-  (let [{:keys [:renderer :elements-array :num-elements :texture :vertex-array]} mesh
+  ([^Matrix4f view-tr ^Matrix4f model-tr ^SimpleCompiledMesh mesh]
+   (render-simple-compiled-mesh view-tr model-tr mesh (:elements-array mesh) (:num-elements mesh)))
+  ([^Matrix4f view-tr ^Matrix4f model-tr ^SimpleCompiledMesh mesh ^GLBuffer elements-array ^Integer num-elements]
+  (let [{:keys [:renderer :texture :vertex-array]} mesh
         {:keys [:program :bindings]} renderer
         {:keys [:view-tr-binding :model-tr-binding
                 :pos-binding :normal-binding
@@ -168,12 +221,12 @@
     (use-program (:program renderer))
     (set-uniform-mat4-matrix view-tr-binding view-tr)
     (set-uniform-mat4-matrix model-tr-binding model-tr)
-    (GL11/glPolygonMode GL11/GL_FRONT_AND_BACK GL11/GL_FILL)
+    (gl-polygon-mode @gl-backend GL11/GL_FRONT_AND_BACK GL11/GL_FILL)
     (bind-attribute-array pos-binding)
     (bind-attribute-array normal-binding)
     (bind-attribute-array uv-binding)
     (bind-texture texture 0)
-    (draw-elements elements-array num-elements)))
+    (draw-elements elements-array num-elements))))
 
 (defrecord SimpleScene
   [^FloatBuffer view-fb
@@ -195,7 +248,7 @@
   (SimpleScene. (create-float-buffer 16) (create-float-buffer 16) (new Matrix4f) projection-tr view-tr model-tr mesh (ref [])))
 
 (defn get-attribute-location [^GLProgram program ^String name]
-  (GL20/glGetAttribLocation (gl-id program) name))
+  (gl-get-attrib-location @gl-backend (gl-id program) name))
 
 (defn create-simple-renderer []
   (let [
@@ -215,23 +268,36 @@
         ]
     (SimpleRenderer. program bindings)))
 
+(defn bind-vertex-buffer [^GLVertexArray vertex-array ^Integer values-per-vertex ^Integer vertex-binding ^GLBuffer buffer]
+  (let [gl @gl-backend]
+    (gl-bind-vertex-array gl (gl-id vertex-array))
+    (gl-bind-buffer gl GL15/GL_ARRAY_BUFFER (gl-id buffer))
+    (gl-vertex-attrib-pointer gl vertex-binding values-per-vertex GL11/GL_FLOAT false 0 0))
+  buffer)
+
+(defn- upload-buffer-data [gl buffer-type data]
+  (let [staged (staging-buffer data)]
+    (try
+      (gl-buffer-data gl buffer-type staged GL15/GL_STATIC_DRAW)
+      (finally (release-buffer staged)))))
+
 (defn bind-vertex-attributes [^GLVertexArray vertex-array ^Integer values-per-vertex ^Integer vertex-binding #^Byte data]
-  (let [buffer (create-glbuffer)
+  (let [gl @gl-backend
+        buffer (create-glbuffer)
         buffer-type GL15/GL_ARRAY_BUFFER]
-    (GL30/glBindVertexArray (gl-id vertex-array))
-    (GL15/glBindBuffer buffer-type (gl-id buffer))
-    (GL15/glBufferData buffer-type data GL15/GL_STATIC_DRAW)
-    (GL20/glVertexAttribPointer vertex-binding values-per-vertex GL11/GL_FLOAT false 0 0)
-    buffer))
+    (gl-bind-buffer gl buffer-type (gl-id buffer))
+    (upload-buffer-data gl buffer-type data)
+    (bind-vertex-buffer vertex-array values-per-vertex vertex-binding buffer)))
 
 (defn create-elements-array [#^Byte data]
-  (let [buffer (create-glbuffer)
+  (let [gl @gl-backend
+        buffer (create-glbuffer)
         buffer-type GL15/GL_ELEMENT_ARRAY_BUFFER]
     (println "Binding elements with" (count data) "elements to buffer" (gl-id buffer))
-    (GL15/glBindBuffer buffer-type (gl-id buffer))
-    (GL15/glBufferData buffer-type data GL15/GL_STATIC_DRAW)
+    (gl-bind-buffer gl buffer-type (gl-id buffer))
+    (upload-buffer-data gl buffer-type data)
 
-    (GL15/glBindBuffer buffer-type 0)
+    (gl-bind-buffer gl buffer-type 0)
     buffer))
 
 (defn ^SimpleCompiledMesh create-simple-compiled-mesh [^SimpleRenderer renderer ^Mesh mesh]
@@ -260,18 +326,31 @@
                                                ]
                               :num-elements   num-elements})))
 
-(defn ^Mesh create-mesh [args-map]
+(defn to-float-array [values]
+  (if (instance? FloatArrayBuilder values)
+    (.takeArray ^FloatArrayBuilder values)
+    (float-array values)))
+
+(defn to-int-array [values]
+  (if (instance? IntArrayBuilder values)
+    (.takeArray ^IntArrayBuilder values)
+    (int-array values)))
+
+(defn ^Mesh create-mesh
+  "Values may be sequences, primitive arrays or FloatArrayBuilder/IntArrayBuilder. A builder's
+   array is taken over without a copy when it is exactly full, and the builder is left empty."
+  [args-map]
   (let [{:keys [positions normals uv triangles texture]} args-map]
     (map->Mesh
       {
-       :positions (float-array positions)
-       :normals   (float-array normals)
-       :uv        (float-array uv)
-       :triangles (int-array triangles)
+       :positions (to-float-array positions)
+       :normals   (to-float-array normals)
+       :uv        (to-float-array uv)
+       :triangles (to-int-array triangles)
        :texture   texture})))
 
-(defn mat4-frustum [^Float left ^Float right ^Float bottom ^Float top ^Float near ^Float far]
-  (-> (new Matrix4f) (.frustum left right bottom top near far)))
+(defn mat4-frustum [left right bottom top near far]
+  (-> (new Matrix4f) (.frustum (float left) (float right) (float bottom) (float top) (float near) (float far))))
 
 (defn mat4-scale [^Float x ^Float y ^Float z]
   (-> (new Matrix4f) (.scale x y z)))
@@ -284,8 +363,8 @@
 (defn scene-translate [^SimpleScene scene ^Vector3fc translation]
   (-> (:view-tr scene) (.translate translation)))
 
-(defn scene-model-rotate [^SimpleScene scene ^Float angle]
-  (-> (:model-tr scene) (.rotate angle 0 0 1)))
+(defn scene-model-rotate [^SimpleScene scene angle]
+  (-> (:model-tr scene) (.rotate (float angle) (float 0) (float 0) (float 1))))
 
 (defn scene-reset-view-tr [^SimpleScene scene ^Vector3fc translation]
   (-> (:view-tr scene) (.identity)))
@@ -302,11 +381,11 @@
   (let [controllers (:controllers scene)]
     (dosync (ref-set controllers [controller]))))
 
-(defn vec3 [^Float x ^Float y ^Float z]
-  (new Vector3f x y z))
+(defn vec3 [x y z]
+  (new Vector3f (float x) (float y) (float z)))
 
 (defn key-down? [window key]
-  (= (GLFW/glfwGetKey window key) GLFW/GLFW_PRESS))
+  (= (gl-get-key @gl-backend window key) GLFW/GLFW_PRESS))
 
 (defn move-controller [scene window delta-time]
   (let [d delta-time]
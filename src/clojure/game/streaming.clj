@@ -0,0 +1,413 @@
+(ns game.streaming
+  (:require [game.shaders :refer [load-image-resource create-image create-mesh
+                                  create-glbuffer create-gltexture create-glvertexarray
+                                  gl-id bind-vertex-buffer map->SimpleCompiledMesh
+                                  pooled-byte-buffer release-buffer]])
+  (:import
+    (game.core Entity)
+    (java.util.concurrent Executors ExecutorService ConcurrentLinkedQueue ThreadFactory)
+    (java.util.concurrent.atomic AtomicInteger)
+    (java.nio ByteBuffer)
+    (org.lwjgl BufferUtils)
+    (org.lwjgl.opengl GL11 GL15)))
+
+;; Streaming asset loader.
+;;
+;; Assets are decoded on a worker pool and turned into a list of upload steps.
+;; The steps run on the GL thread from upload-frame (the loader is an Entity, so
+;; adding it to the entity list runs it once per frame) until the per-frame byte
+;; budget is spent, so one large buffer never stalls a frame.
+
+(defprotocol UploadBackend
+  (allocate-buffer [this target size])
+  (upload-buffer-range [this buffer target offset ^ByteBuffer data])
+  (allocate-texture [this width height])
+  (upload-texture-rows [this texture y width rows ^ByteBuffer data]))
+
+(defn- gl-buffer-target
+  "Targets are keywords so that headless code never loads the GL classes."
+  [target]
+  (case target
+    :array-buffer GL15/GL_ARRAY_BUFFER
+    :element-array-buffer GL15/GL_ELEMENT_ARRAY_BUFFER))
+
+(deftype GLUploadBackend []
+  UploadBackend
+  (allocate-buffer [this target size]
+    (let [buffer (create-glbuffer)
+          buffer-type (int (gl-buffer-target target))]
+      (GL15/glBindBuffer buffer-type (int (gl-id buffer)))
+      (GL15/glBufferData buffer-type (long size) GL15/GL_STATIC_DRAW)
+      (GL15/glBindBuffer buffer-type 0)
+      buffer))
+  (upload-buffer-range [this buffer target offset data]
+    (let [buffer-type (int (gl-buffer-target target))]
+      (GL15/glBindBuffer buffer-type (int (gl-id buffer)))
+      (GL15/glBufferSubData buffer-type (long offset) ^ByteBuffer data)
+      (GL15/glBindBuffer buffer-type 0)))
+  (allocate-texture [this width height]
+    (let [texture (create-gltexture)
+          ^ByteBuffer no-pixels nil]
+      (GL11/glBindTexture GL11/GL_TEXTURE_2D (gl-id texture))
+      (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_MIN_FILTER GL11/GL_LINEAR)
+      (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_MAG_FILTER GL11/GL_LINEAR)
+      (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_WRAP_S GL11/GL_REPEAT)
+      (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_WRAP_T GL11/GL_REPEAT)
+      (GL11/glTexImage2D GL11/GL_TEXTURE_2D 0 GL11/GL_RGBA (int width) (int height) 0
+                         GL11/GL_RGBA GL11/GL_UNSIGNED_BYTE no-pixels)
+      texture))
+  (upload-texture-rows [this texture y width rows data]
+    (GL11/glBindTexture GL11/GL_TEXTURE_2D (gl-id texture))
+    (GL11/glTexSubImage2D GL11/GL_TEXTURE_2D 0 0 (int y) (int width) (int rows)
+                          GL11/GL_RGBA GL11/GL_UNSIGNED_BYTE ^ByteBuffer data)))
+
+(defn gl-upload-backend []
+  (GLUploadBackend.))
+
+(defn- copy-into [^bytes dest offset ^ByteBuffer data]
+  (.get (.duplicate data) dest (int offset) (.remaining data)))
+
+(deftype RecordingUploadBackend [calls next-id store]
+  UploadBackend
+  (allocate-buffer [this target size]
+    (let [id (swap! next-id inc)]
+      (swap! store assoc id (byte-array size))
+      (swap! calls conj [:allocate-buffer id target size])
+      id))
+  (upload-buffer-range [this buffer target offset data]
+    (copy-into (get @store buffer) offset data)
+    (swap! calls conj [:upload-buffer-range buffer target offset (.remaining ^ByteBuffer data)]))
+  (allocate-texture [this width height]
+    (let [id (swap! next-id inc)]
+      (swap! store assoc id (byte-array (* 4 width height)))
+      (swap! calls conj [:allocate-texture id width height])
+      id))
+  (upload-texture-rows [this texture y width rows data]
+    (copy-into (get @store texture) (* 4 width y) data)
+    (swap! calls conj [:upload-texture-rows texture y width rows])))
+
+(defn recording-upload-backend
+  "Backend that never touches GL; records each call and keeps a copy of the uploaded bytes."
+  []
+  (RecordingUploadBackend. (atom []) (atom 0) (atom {})))
+
+(defn recorded-calls [^RecordingUploadBackend backend]
+  @(.calls backend))
+
+(defn ^bytes recorded-bytes [^RecordingUploadBackend backend handle]
+  (get @(.store backend) handle))
+
+;; Upload ring - a fixed set of direct staging buffers reused round robin. Heap
+;; arrays are copied into the next staging buffer just before their chunk is
+;; uploaded; glBufferSubData has consumed the data by the time it returns, so a
+;; buffer is free again as soon as its step has run.
+
+(defrecord UploadRing [buffers ^AtomicInteger next-index ^Integer chunk-size])
+
+(defn create-upload-ring [ring-size chunk-size]
+  (UploadRing. (vec (repeatedly ring-size #(BufferUtils/createByteBuffer chunk-size)))
+               (AtomicInteger.)
+               chunk-size))
+
+(defn ^ByteBuffer next-staging-buffer [^UploadRing ring]
+  (let [buffers (:buffers ring)
+        index (mod (.getAndIncrement ^AtomicInteger (:next-index ring)) (count buffers))
+        ^ByteBuffer buffer (nth buffers index)]
+    (.clear buffer)
+    buffer))
+
+(defn- stage-floats [ring ^floats data start length]
+  (let [staging (next-staging-buffer ring)]
+    (.put (.asFloatBuffer staging) data (int start) (int length))
+    (.limit staging (int (* 4 length)))
+    staging))
+
+(defn- stage-ints [ring ^ints data start length]
+  (let [staging (next-staging-buffer ring)]
+    (.put (.asIntBuffer staging) data (int start) (int length))
+    (.limit staging (int (* 4 length)))
+    staging))
+
+(defn- slice [^ByteBuffer buffer offset length]
+  (let [view (.duplicate buffer)]
+    (.clear view)
+    (.limit view (int (+ offset length)))
+    (.position view (int offset))
+    (.slice view)))
+
+;; Assets
+
+(defrecord Asset [kind name state result])
+
+(defn asset-state
+  "One of :queued, :decoding, :uploading, :ready or :failed."
+  [^Asset asset]
+  @(:state asset))
+
+(defn asset-ready? [^Asset asset]
+  (= :ready (asset-state asset)))
+
+(defn await-asset
+  "Blocks until the asset is ready. Never call this from the GL thread."
+  [^Asset asset]
+  (let [value (deref (:result asset))]
+    (if (instance? Throwable value)
+      (throw (RuntimeException. ^Throwable value))
+      value)))
+
+(defrecord StreamedMesh [positions normals uv triangles ^Integer num-elements texture])
+
+(declare upload-frame)
+
+(defrecord StreamingLoader
+  [^ExecutorService pool backend ^UploadRing ring ^ConcurrentLinkedQueue uploads
+   current ^Integer frame-budget metrics]
+  Entity
+  (render-entity [self window])
+  (update-entity [self window delta-time] (upload-frame self)))
+
+(def empty-metrics
+  {:assets-queued    0
+   :assets-decoded   0
+   :assets-ready     0
+   :assets-failed    0
+   :bytes-uploaded   0
+   :chunks-uploaded  0
+   :frames           0
+   :last-frame-bytes 0
+   :decode-ns        0
+   :upload-ns        0})
+
+(defn- worker-thread-factory []
+  (let [counter (AtomicInteger.)]
+    (reify ThreadFactory
+      (newThread [this runnable]
+        (doto (Thread. ^Runnable runnable (str "asset-loader-" (.incrementAndGet counter)))
+          (.setDaemon true))))))
+
+(defn ^StreamingLoader create-streaming-loader
+  "Options (all optional):
+     :threads      decode worker count, defaults to the number of cores
+     :chunk-size   bytes per upload step and per staging buffer
+     :ring-size    number of staging buffers
+     :frame-budget bytes uploaded per call to upload-frame
+     :backend      an UploadBackend, defaults to the LWJGL backend"
+  [args-map]
+  (let [{:keys [threads chunk-size ring-size frame-budget backend]
+         :or   {threads      (.availableProcessors (Runtime/getRuntime))
+                chunk-size   (* 256 1024)
+                ring-size    4
+                frame-budget (* 4 1024 1024)}} args-map]
+    (StreamingLoader.
+      (Executors/newFixedThreadPool threads (worker-thread-factory))
+      (or backend (gl-upload-backend))
+      (create-upload-ring ring-size chunk-size)
+      (ConcurrentLinkedQueue.)
+      (atom nil)
+      frame-budget
+      (atom empty-metrics))))
+
+(defn shutdown-streaming-loader [^StreamingLoader loader]
+  (.shutdown ^ExecutorService (:pool loader)))
+
+(defn- fail-asset! [loader ^Asset asset ^Throwable e]
+  (reset! (:state asset) :failed)
+  (swap! (:metrics loader) update :assets-failed inc)
+  (deliver (:result asset) e))
+
+(defn- complete-asset! [loader ^Asset asset value]
+  (reset! (:state asset) :ready)
+  (swap! (:metrics loader) update :assets-ready inc)
+  (deliver (:result asset) value))
+
+(defn- submit-asset
+  "decode-fn runs on a worker and returns the decoded asset, steps-fn turns that
+   into an upload job {:steps [{:bytes n :run (fn [backend])} ...] :finish (fn [])}.
+   A job may also have :release (fn []), called if it fails, to free what it owns."
+  [^StreamingLoader loader kind name decode-fn steps-fn]
+  (let [asset (Asset. kind name (atom :queued) (promise))
+        metrics (:metrics loader)]
+    (swap! metrics update :assets-queued inc)
+    (.execute ^ExecutorService (:pool loader)
+              ^Runnable
+              (fn []
+                (try
+                  (reset! (:state asset) :decoding)
+                  (let [start (System/nanoTime)
+                        job (steps-fn (decode-fn))]
+                    (swap! metrics #(-> %
+                                        (update :decode-ns + (- (System/nanoTime) start))
+                                        (update :assets-decoded inc)))
+                    (reset! (:state asset) :uploading)
+                    (.add ^ConcurrentLinkedQueue (:uploads loader) (assoc job :asset asset)))
+                  (catch Throwable e (fail-asset! loader asset e)))))
+    asset))
+
+(defn- array-steps
+  "Steps that allocate a buffer for data and fill it chunk by chunk through the
+   staging ring. The buffer handle is stored under key in handles."
+  [ring target data length stage-fn handles key]
+  (let [per-chunk (quot (:chunk-size ring) 4)]
+    (cons
+      {:bytes 0
+       :run   (fn [backend]
+                (vswap! handles assoc key (allocate-buffer backend target (* 4 length))))}
+      (for [start (range 0 length per-chunk)]
+        (let [chunk-length (min per-chunk (- length start))]
+          {:bytes (* 4 chunk-length)
+           :run   (fn [backend]
+                    (upload-buffer-range backend (get @handles key) target (* 4 start)
+                                         (stage-fn ring data start chunk-length)))})))))
+
+(defn- mesh-job [^StreamingLoader loader mesh]
+  (let [{:keys [^floats positions ^floats normals ^floats uv ^ints triangles texture]} mesh
+        ring (:ring loader)
+        num-elements (alength triangles)
+        handles (volatile! {})]
+    {:steps  (doall
+               (concat
+                 (array-steps ring :array-buffer positions (alength positions) stage-floats handles :positions)
+                 (array-steps ring :array-buffer normals (alength normals) stage-floats handles :normals)
+                 (array-steps ring :array-buffer uv (alength uv) stage-floats handles :uv)
+                 (array-steps ring :element-array-buffer triangles (alength triangles) stage-ints handles :triangles)))
+     :finish (fn []
+               (let [{:keys [positions normals uv triangles]} @handles]
+                 (StreamedMesh. positions normals uv triangles num-elements texture)))}))
+
+(defn- texture-job
+  "The decoded rgba buffer is already direct, so row chunks are uploaded from
+   slices of it rather than copied through the staging ring. When the loader
+   decoded the image itself the buffer goes back to the pool after the upload."
+  [^StreamingLoader loader image owned?]
+  (let [{:keys [width height ^ByteBuffer rgba]} image
+        row-bytes (* 4 width)
+        rows-per-chunk (max 1 (quot (:chunk-size (:ring loader)) row-bytes))
+        texture (volatile! nil)
+        released (atom false)
+        release (fn []
+                  (when (and owned? (compare-and-set! released false true))
+                    (release-buffer rgba)))]
+    {:steps  (doall
+               (cons
+                 {:bytes 0
+                  :run   (fn [backend] (vreset! texture (allocate-texture backend width height)))}
+                 (for [y (range 0 height rows-per-chunk)]
+                   (let [rows (min rows-per-chunk (- height y))]
+                     {:bytes (* rows row-bytes)
+                      :run   (fn [backend]
+                               (upload-texture-rows backend @texture y width rows
+                                                    (slice rgba (* y row-bytes) (* rows row-bytes))))}))))
+     :finish (fn []
+               (release)
+               @texture)
+     :release release}))
+
+(defn stream-mesh
+  "decode-fn returns a Mesh (see create-mesh); the asset result is a StreamedMesh."
+  [^StreamingLoader loader name decode-fn]
+  (submit-asset loader :mesh name decode-fn #(mesh-job loader %)))
+
+(defn stream-texture
+  "decode-fn returns an Image (see create-image); the asset result is the texture handle."
+  [^StreamingLoader loader name decode-fn]
+  (submit-asset loader :texture name decode-fn #(texture-job loader % false)))
+
+(defn load-mesh
+  "name identifies the asset in metrics and failures, typically the mesh's source path."
+  [^StreamingLoader loader name args-map]
+  (stream-mesh loader name #(create-mesh args-map)))
+
+(defn load-texture [^StreamingLoader loader ^String resource-path]
+  (submit-asset loader :texture resource-path #(-> resource-path load-image-resource (create-image pooled-byte-buffer))
+                #(texture-job loader % true)))
+
+(defn- release-job [job]
+  (when-let [release (:release job)]
+    (release)))
+
+(defn- run-step
+  "Runs one step of the current job, returning the bytes it uploaded."
+  [^StreamingLoader loader job step]
+  (let [{:keys [backend current]} loader
+        asset (:asset job)]
+    (try
+      ((:run step) backend)
+      (reset! current (update job :steps rest))
+      (:bytes step)
+      (catch Throwable e
+        (reset! current nil)
+        (release-job job)
+        (fail-asset! loader asset e)
+        0))))
+
+(defn- finish-job [^StreamingLoader loader job]
+  (reset! (:current loader) nil)
+  (try
+    (complete-asset! loader (:asset job) ((:finish job)))
+    (catch Throwable e
+      (release-job job)
+      (fail-asset! loader (:asset job) e))))
+
+(defn upload-frame
+  "Runs pending upload steps until the frame budget is spent and returns the bytes
+   uploaded. At least one step runs per call so oversized chunks still progress.
+   Must be called on the GL thread."
+  [^StreamingLoader loader]
+  (let [{:keys [^ConcurrentLinkedQueue uploads current frame-budget metrics]} loader
+        start (System/nanoTime)
+        [spent chunks]
+        (loop [spent 0 chunks 0]
+          (let [job (or @current (reset! current (.poll uploads)))]
+            (if (nil? job)
+              [spent chunks]
+              (let [step (first (:steps job))]
+                (cond
+                  (nil? step) (do (finish-job loader job) (recur spent chunks))
+                  (and (pos? spent) (> (+ spent (:bytes step)) frame-budget)) [spent chunks]
+                  :else (recur (+ spent (run-step loader job step)) (inc chunks)))))))]
+    (swap! metrics #(-> %
+                        (update :bytes-uploaded + spent)
+                        (update :chunks-uploaded + chunks)
+                        (update :upload-ns + (- (System/nanoTime) start))
+                        (update :frames inc)
+                        (assoc :last-frame-bytes spent)))
+    spent))
+
+(defn loader-metrics
+  "Counters plus derived throughput: upload MB/s measured over time spent inside
+   upload-frame, and mean decode time per asset."
+  [^StreamingLoader loader]
+  (let [{:keys [bytes-uploaded upload-ns decode-ns assets-decoded] :as metrics} @(:metrics loader)]
+    (assoc metrics
+      :pending-uploads (+ (.size ^ConcurrentLinkedQueue (:uploads loader)) (if @(:current loader) 1 0))
+      :upload-mb-per-sec (if (pos? upload-ns) (/ (/ bytes-uploaded 1048576.0) (/ upload-ns 1e9)) 0.0)
+      :decode-ms-per-asset (if (pos? assets-decoded) (/ (/ decode-ns 1e6) assets-decoded) 0.0))))
+
+(defn create-streamed-compiled-mesh
+  "Builds a SimpleCompiledMesh from a StreamedMesh uploaded with the GL backend.
+   Must be called on the GL thread."
+  [renderer ^StreamedMesh streamed]
+  (let [{:keys [positions normals uv triangles num-elements texture]} streamed
+        vertex-array (create-glvertexarray)
+        bindings (:bindings renderer)
+        bind-va
+        (fn [attribute values-per-vertex buffer]
+          (let [vertex-binding (attribute bindings)]
+            (when (not (= -1 vertex-binding))
+              (bind-vertex-buffer vertex-array values-per-vertex vertex-binding buffer))))]
+    (map->SimpleCompiledMesh {:renderer       renderer
+                              :vertex-array   vertex-array
+                              :elements-array triangles
+                              :texture        texture
+                              :buffers        [(bind-va :pos-binding 3 positions)
+                                               (bind-va :normal-binding 3 normals)
+                                               (bind-va :uv-binding 2 uv)]
+                              :num-elements   num-elements})))
+
+(comment
+  (def loader (create-streaming-loader {}))
+  (game.core/entity-list-add loader)
+  (def stone (load-texture loader "stone_texture.jpg"))
+  (asset-state stone)
+  (loader-metrics loader)
+  )
@@ -2,11 +2,16 @@
 
 (def task-queue (atom []))
 
-(defn post-action [task]
+(defn queue-action
+  "Queues task for the GL thread without waiting, returning a promise of its result."
+  [task]
   (let [result (promise)
-        action {:task task :result result}
-        _ (dosync (swap! task-queue conj action))
-        result-value (deref result)]
+        action {:task task :result result}]
+    (dosync (swap! task-queue conj action))
+    result))
+
+(defn post-action [task]
+  (let [result-value (deref (queue-action task))]
     (if (instance? RuntimeException result-value)
       (throw (RuntimeException. result-value))
       result-value)))
@@ -18,6 +23,20 @@
         (swap! task-queue rest)
         action))))
 
+(defn take-actions
+  "Removes every queued action and returns them in order."
+  []
+  (loop []
+    (let [actions @task-queue]
+      (if (compare-and-set! task-queue actions [])
+        (vec actions)
+        (recur)))))
+
+(defn requeue-actions
+  "Puts actions taken with take-actions back ahead of anything queued since."
+  [actions]
+  (swap! task-queue #(into (vec actions) %)))
+
 (defn read-execute-action []
   (let [action (read-action)]
     (when action
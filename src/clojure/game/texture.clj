@@ -0,0 +1,177 @@
+(ns game.texture
+  (:require [game.shaders :refer [create-gltexture gl-id pooled-byte-buffer release-buffer]]
+            [clojure.java.io :as io])
+  (:import (game.shaders Image GLTexture)
+           (example.texture MipChain TextureAtlas BlockCompressor BlockCompressor$Format CompressedTexture)
+           (org.lwjgl.opengl GL GL11 GL12 GL13)
+           (java.nio ByteBuffer)
+           (java.io File)
+           (java.security MessageDigest)))
+
+(defn ^MipChain build-mip-chain
+  "Gamma-correct mip chain of an Image, filtered in parallel. max-levels 0 means down to 1x1."
+  ([^Image image] (build-mip-chain image 0))
+  ([^Image image max-levels]
+   (let [{:keys [width height ^ByteBuffer rgba]} image]
+     (MipChain/build rgba (int width) (int height) (int max-levels) true))))
+
+(defn mip-levels [^MipChain chain]
+  (mapv (fn [width height] [width height]) (.widths chain) (.heights chain)))
+
+(defn ^GLTexture create-mipmapped-texture
+  "Uploads every level of the chain with trilinear filtering. Must run on the GL thread."
+  ([^MipChain chain] (create-mipmapped-texture chain GL11/GL_REPEAT))
+  ([^MipChain chain wrap]
+   (let [texture (create-gltexture)
+         levels (.getLevelCount chain)]
+     (GL11/glBindTexture GL11/GL_TEXTURE_2D (gl-id texture))
+     (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_MIN_FILTER GL11/GL_LINEAR_MIPMAP_LINEAR)
+     (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_MAG_FILTER GL11/GL_LINEAR)
+     (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_WRAP_S wrap)
+     (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_WRAP_T wrap)
+     (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL12/GL_TEXTURE_MAX_LEVEL (dec levels))
+     (dotimes [level levels]
+       (let [rgba (pooled-byte-buffer (aget (.levels chain) level))]
+         (GL11/glTexImage2D GL11/GL_TEXTURE_2D level GL11/GL_RGBA
+                            (aget (.widths chain) level) (aget (.heights chain) level)
+                            0 GL11/GL_RGBA GL11/GL_UNSIGNED_BYTE ^ByteBuffer rgba)
+         (release-buffer rgba)))
+     texture)))
+
+(def default-atlas-options
+  {:page-width  2048
+   :page-height 2048
+   :padding     4})
+
+(defrecord Atlas [^TextureAtlas atlas index])
+
+(defn ^Atlas pack-atlas
+  "Packs a map of key to Image into atlas pages and copies their pixels in parallel."
+  ([images] (pack-atlas images {}))
+  ([images options]
+   (let [{:keys [page-width page-height padding]} (merge default-atlas-options options)
+         entries (vec images)
+         atlas (TextureAtlas/pack (int page-width) (int page-height) (int padding)
+                                  (int-array (map (comp :width val) entries))
+                                  (int-array (map (comp :height val) entries)))]
+     (dorun (pmap (fn [i [_ image]] (.blit atlas (int i) ^ByteBuffer (:rgba image)))
+                  (range) entries))
+     (Atlas. atlas (into {} (map-indexed (fn [i [key _]] [key i]) entries))))))
+
+(defn atlas-region
+  "Page and pixel rectangle of an image in the atlas."
+  [^Atlas packed key]
+  (let [^TextureAtlas atlas (:atlas packed)
+        i (get (:index packed) key)]
+    {:page   (aget (.page atlas) i)
+     :x      (aget (.x atlas) i)
+     :y      (aget (.y atlas) i)
+     :width  (aget (.width atlas) i)
+     :height (aget (.height atlas) i)}))
+
+(defn atlas-mesh
+  "Mesh with its uv remapped onto the atlas page of key, with :atlas-page set to that page.
+   The mesh's uv must stay within [0, 1]; repeating textures cannot share an atlas."
+  [^Atlas packed key mesh]
+  (let [^TextureAtlas atlas (:atlas packed)
+        i (int (get (:index packed) key))]
+    (assoc mesh
+      :uv (.remapUv atlas i ^floats (:uv mesh))
+      :atlas-page (aget (.page atlas) i))))
+
+(defn atlas-page-chains
+  "Mip chains of the atlas pages, limited to levels the padding protects from bleeding."
+  [^Atlas packed]
+  (let [^TextureAtlas atlas (:atlas packed)]
+    (mapv #(MipChain/build (.getPage atlas (int %)) (.pageWidth atlas) (.pageHeight atlas)
+                           (.getSafeMipLevels atlas) true)
+          (range (.getPageCount atlas)))))
+
+(defn create-atlas-textures
+  "A texture per atlas page, indexed by :atlas-page. Must run on the GL thread."
+  [page-chains]
+  (mapv #(create-mipmapped-texture % GL12/GL_CLAMP_TO_EDGE) page-chains))
+
+(defn atlas-stats [^Atlas packed]
+  (let [^TextureAtlas atlas (:atlas packed)]
+    {:images    (.getImageCount atlas)
+     :pages     (.getPageCount atlas)
+     :occupancy (.getOccupancy atlas)}))
+
+(def block-formats
+  {:bc1 BlockCompressor$Format/BC1
+   :bc3 BlockCompressor$Format/BC3})
+
+(defn ^CompressedTexture compress-texture
+  "Builds the mip chain of an Image and block compresses every level in parallel.
+   block-format is :bc1 for opaque textures or :bc3 to keep alpha."
+  [^Image image block-format]
+  (CompressedTexture/compress (build-mip-chain image) (block-formats block-format) true))
+
+(def texture-cache-dir
+  (io/file (System/getProperty "game.texture.cache" "target/texture-cache")))
+
+(def texture-cache-version
+  "Encoder and file format versions; part of every cache key so either changing misses old entries."
+  (str "bc" BlockCompressor/ENCODER_VERSION ".bctx" CompressedTexture/VERSION))
+
+(defn texture-cache-key
+  "Hex SHA-1 of the cache version, image size, format and pixels."
+  [^Image image block-format]
+  (let [{:keys [width height ^ByteBuffer rgba]} image
+        digest (MessageDigest/getInstance "SHA-1")]
+    (.update digest (.getBytes (str texture-cache-version ":" width "x" height ":" (name block-format) ":")))
+    (.update digest (.duplicate rgba))
+    (apply str (map #(format "%02x" %) (.digest digest)))))
+
+(defn ^CompressedTexture cached-compress-texture
+  "compress-texture through a disk cache keyed by image content, so each distinct
+   image is only ever encoded once."
+  [^Image image block-format]
+  (let [^File file (io/file texture-cache-dir (str (texture-cache-key image block-format) ".bctx"))]
+    (if (.isFile file)
+      (with-open [in (io/input-stream file)]
+        (CompressedTexture/read in))
+      (let [compressed (compress-texture image block-format)
+            ^File partial (File/createTempFile "texture" ".partial" (doto texture-cache-dir .mkdirs))]
+        (with-open [out (io/output-stream partial)]
+          (.write compressed out))
+        ;; Another process may have cached the same image first; otherwise the entry is
+        ;; just skipped and the texture encoded again next time.
+        (when-not (.renameTo partial file)
+          (.delete partial)
+          (when-not (.isFile file)
+            (println "Unable to cache compressed texture" (str file))))
+        compressed))))
+
+(defn s3tc-supported?
+  "True if the current context has EXT_texture_compression_s3tc. Must run on the GL thread."
+  []
+  (.GL_EXT_texture_compression_s3tc (GL/getCapabilities)))
+
+(defn ^GLTexture create-compressed-texture
+  "Uploads every level with glCompressedTexImage2D, a quarter (BC3) or eighth (BC1) of the
+   RGBA size on the bus and in VRAM. Check s3tc-supported? first. Must run on the GL thread."
+  [^CompressedTexture compressed]
+  (let [texture (create-gltexture)
+        levels (.getLevelCount compressed)]
+    (GL11/glBindTexture GL11/GL_TEXTURE_2D (gl-id texture))
+    (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_MIN_FILTER GL11/GL_LINEAR_MIPMAP_LINEAR)
+    (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_MAG_FILTER GL11/GL_LINEAR)
+    (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_WRAP_S GL11/GL_REPEAT)
+    (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL11/GL_TEXTURE_WRAP_T GL11/GL_REPEAT)
+    (GL11/glTexParameteri GL11/GL_TEXTURE_2D GL12/GL_TEXTURE_MAX_LEVEL (dec levels))
+    (dotimes [level levels]
+      (let [blocks (pooled-byte-buffer (aget (.levels compressed) level))]
+        (GL13/glCompressedTexImage2D GL11/GL_TEXTURE_2D level (.glInternalFormat (.format compressed))
+                                     (aget (.widths compressed) level) (aget (.heights compressed) level)
+                                     0 ^ByteBuffer blocks)
+        (release-buffer blocks)))
+    texture))
+
+(comment
+  (def stone-compressed (cached-compress-texture (-> "stone_texture.jpg" game.shaders/load-image-resource game.shaders/create-image) :bc1))
+  (def stone-bc1 (game.task-queue/gl-run (when (s3tc-supported?) (create-compressed-texture stone-compressed))))
+  (def stone-chain (build-mip-chain (-> "stone_texture.jpg" game.shaders/load-image-resource game.shaders/create-image)))
+  (def stone-texture (game.task-queue/gl-run (create-mipmapped-texture stone-chain)))
+  )
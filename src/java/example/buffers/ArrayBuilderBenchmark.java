@@ -0,0 +1,116 @@
+package example.buffers;
+
+import example.math.Utils;
+
+import java.lang.management.ManagementFactory;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the position and index data of a mesh with the given number of elements (10M by
+ * default) through boxed lists and through the primitive builders, converting each to direct
+ * buffers with Utils, and prints time, bytes allocated and heap retained by the intermediate
+ * collection. The direct buffers are staging buffers from the default pool, released as an
+ * upload would release them once the data had been sent.
+ *
+ * Run with: lein run -m example.buffers.ArrayBuilderBenchmark [elements]
+ * A heap of a few GB is needed for the boxed case, e.g. -Xmx4g.
+ */
+public class ArrayBuilderBenchmark {
+
+	interface Case {
+		Object build(int elements);
+	}
+
+	private static final com.sun.management.ThreadMXBean THREADS =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+	private static final DirectBufferPool POOL = DirectBufferPool.DEFAULT;
+
+	/** Stands in for the upload: the staging buffers go back to the pool once sent. */
+	static void upload(FloatBuffer positions, IntBuffer triangles) {
+		POOL.release(positions);
+		POOL.release(triangles);
+	}
+
+	static Object boxed(int elements) {
+		List<Float> positions = new ArrayList<>();
+		List<Integer> triangles = new ArrayList<>();
+		for (int i = 0; i < elements; ++i) {
+			positions.add((float) Math.sin(i));
+			triangles.add(i);
+		}
+		upload(Utils.toFloatBuffer(POOL, positions), Utils.toIntBuffer(POOL, triangles));
+		return new Object[] { positions, triangles };
+	}
+
+	static Object primitive(int elements) {
+		FloatArrayBuilder positions = new FloatArrayBuilder();
+		IntArrayBuilder triangles = new IntArrayBuilder();
+		for (int i = 0; i < elements; ++i) {
+			positions.add((float) Math.sin(i));
+			triangles.add(i);
+		}
+		upload(Utils.toFloatBuffer(POOL, positions), Utils.toIntBuffer(POOL, triangles));
+		return new Object[] { positions, triangles };
+	}
+
+	static Object parallel(int elements) {
+		FloatArrayBuilder positions = new FloatArrayBuilder(elements);
+		IntArrayBuilder triangles = new IntArrayBuilder(elements);
+		positions.fillParallel(elements, 1 << 16, (array, from, to) -> {
+			for (int i = from; i < to; ++i) {
+				array[i] = (float) Math.sin(i);
+			}
+		});
+		triangles.fillParallel(elements, 1 << 16, (array, from, to) -> {
+			for (int i = from; i < to; ++i) {
+				array[i] = i;
+			}
+		});
+		upload(Utils.toFloatBuffer(POOL, positions), Utils.toIntBuffer(POOL, triangles));
+		return new Object[] { positions, triangles };
+	}
+
+	static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; ++i) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	static void run(String name, Case c, int elements, int iterations) {
+		c.build(elements);
+		long bestNanos = Long.MAX_VALUE;
+		long allocated = 0;
+		long retained = 0;
+		for (int i = 0; i < iterations; ++i) {
+			long before = usedHeap();
+			long threadId = Thread.currentThread().getId();
+			long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+			long start = System.nanoTime();
+			Object result = c.build(elements);
+			long nanos = System.nanoTime() - start;
+			allocated = THREADS.getThreadAllocatedBytes(threadId) - allocatedBefore;
+			retained = usedHeap() - before;
+			bestNanos = Math.min(bestNanos, nanos);
+			if (result == null) {
+				throw new IllegalStateException();
+			}
+		}
+		System.out.println(String.format("%-10s %10.1f ms %12.1f MB allocated %12.1f MB retained",
+				name, bestNanos / 1e6, allocated / 1048576.0, retained / 1048576.0));
+	}
+
+	public static void main(String[] args) {
+		int elements = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+		System.out.println("elements = " + elements + " (allocation counts the calling thread only)");
+		run("boxed", ArrayBuilderBenchmark::boxed, elements, iterations);
+		run("primitive", ArrayBuilderBenchmark::primitive, elements, iterations);
+		run("parallel", ArrayBuilderBenchmark::parallel, elements, iterations);
+	}
+}
@@ -0,0 +1,300 @@
+package example.buffers;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size-class pool of direct byte buffers.
+ *
+ * Requests are rounded up to a size class (four classes per power of two, so at most 25% is
+ * wasted) and released buffers are kept on a per-class free list for the next request of that
+ * class. Requests larger than the largest class are allocated exactly and never pooled.
+ *
+ * Every buffer handed out is tracked by its address, so views returned by acquireFloats and
+ * acquireInts can be released directly and releasing a buffer twice is an error. Tracking holds
+ * buffers weakly: one that is dropped without a release is freed once the GC finds it, as if it
+ * had been released without pooling. In debug mode the pool keeps each buffer and its allocation
+ * site instead, so that a missing release is reported as a leak rather than hidden.
+ */
+public class DirectBufferPool {
+
+	public interface Backing {
+		ByteBuffer allocate(int size);
+		void free(ByteBuffer buffer);
+		/** Frees the memory of a buffer the GC collected without a release. */
+		void freeCollected(long address);
+	}
+
+	/** BufferUtils allocations; memory is reclaimed by the GC once a buffer is dropped. */
+	public static final Backing GC = new Backing() {
+		public ByteBuffer allocate(int size) {
+			return BufferUtils.createByteBuffer(size);
+		}
+
+		public void free(ByteBuffer buffer) {
+		}
+
+		public void freeCollected(long address) {
+		}
+	};
+
+	/**
+	 * Explicit memAlloc/memFree through LWJGL's configured allocator, which is jemalloc or
+	 * rpmalloc depending on -Dorg.lwjgl.system.allocator.
+	 */
+	public static final Backing MEMORY_UTIL = new Backing() {
+		public ByteBuffer allocate(int size) {
+			return MemoryUtil.memAlloc(size);
+		}
+
+		public void free(ByteBuffer buffer) {
+			MemoryUtil.memFree(buffer);
+		}
+
+		public void freeCollected(long address) {
+			MemoryUtil.nmemFree(address);
+		}
+	};
+
+	public static final DirectBufferPool DEFAULT = new DirectBufferPool(GC, 64 << 20, 256 << 20,
+			Boolean.getBoolean("game.buffers.debug"));
+
+	private static final int MIN_CLASS_SHIFT = 6;
+	private static final int MIN_CLASS_SIZE = 1 << MIN_CLASS_SHIFT;
+
+	private static class Allocation extends WeakReference<ByteBuffer> {
+		final long address;
+		final int capacity;
+		/** Only set in debug mode, where an unreleased buffer must stay reportable. */
+		final ByteBuffer block;
+		final Throwable site;
+
+		Allocation(ByteBuffer block, ReferenceQueue<ByteBuffer> queue, boolean debug) {
+			super(block, queue);
+			this.address = MemoryUtil.memAddress0(block);
+			this.capacity = block.capacity();
+			this.block = debug ? block : null;
+			this.site = debug ? new Throwable("Acquired here") : null;
+		}
+	}
+
+	private final Backing backing;
+	private final int maxClassSize;
+	private final long maxPooledBytes;
+	private final boolean debug;
+	private final List<ArrayDeque<ByteBuffer>> freeLists;
+	private final ConcurrentHashMap<Long, Allocation> outstanding = new ConcurrentHashMap<>();
+	private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+
+	private final AtomicLong bytesLive = new AtomicLong();
+	private final AtomicLong peakBytesLive = new AtomicLong();
+	private final AtomicLong bytesRecycled = new AtomicLong();
+	private final AtomicLong bytesAllocated = new AtomicLong();
+	private final AtomicLong bytesPooled = new AtomicLong();
+	private final AtomicLong bytesCollected = new AtomicLong();
+
+	public DirectBufferPool(Backing backing, int maxClassSize, long maxPooledBytes, boolean debug) {
+		this.backing = backing;
+		this.maxClassSize = classSize(classIndex(maxClassSize));
+		this.maxPooledBytes = maxPooledBytes;
+		this.debug = debug;
+		int classCount = classIndex(this.maxClassSize) + 1;
+		this.freeLists = new ArrayList<>(classCount);
+		for (int i = 0; i < classCount; ++i) {
+			freeLists.add(new ArrayDeque<>());
+		}
+	}
+
+	public static int classIndex(int size) {
+		if (size <= MIN_CLASS_SIZE) {
+			return 0;
+		}
+		int shift = 31 - Integer.numberOfLeadingZeros(size - 1);
+		int base = 1 << shift;
+		int quarter = base >> 2;
+		int step = (size - base + quarter - 1) / quarter;
+		return 1 + (shift - MIN_CLASS_SHIFT) * 4 + (step - 1);
+	}
+
+	public static int classSize(int index) {
+		if (index == 0) {
+			return MIN_CLASS_SIZE;
+		}
+		int shift = MIN_CLASS_SHIFT + (index - 1) / 4;
+		int step = (index - 1) % 4 + 1;
+		return (1 << shift) + step * (1 << (shift - 2));
+	}
+
+	/** Returns a native-order buffer with position 0 and limit size; its capacity may be larger. */
+	public ByteBuffer acquire(int size) {
+		expungeCollected();
+		ByteBuffer block = null;
+		if (size <= maxClassSize) {
+			int index = classIndex(size);
+			ArrayDeque<ByteBuffer> freeList = freeLists.get(index);
+			synchronized (freeList) {
+				block = freeList.poll();
+			}
+			if (block != null) {
+				bytesPooled.addAndGet(-block.capacity());
+				bytesRecycled.addAndGet(block.capacity());
+			} else {
+				block = backing.allocate(classSize(index));
+				bytesAllocated.addAndGet(block.capacity());
+			}
+		} else {
+			block = backing.allocate(size);
+			bytesAllocated.addAndGet(block.capacity());
+		}
+		block.clear();
+		block.limit(size);
+		Allocation allocation = new Allocation(block, collected, debug);
+		outstanding.put(allocation.address, allocation);
+		long live = bytesLive.addAndGet(block.capacity());
+		long peak = peakBytesLive.get();
+		while (live > peak && !peakBytesLive.compareAndSet(peak, live)) {
+			peak = peakBytesLive.get();
+		}
+		return block;
+	}
+
+	public FloatBuffer acquireFloats(int count) {
+		return acquire(count * 4).asFloatBuffer();
+	}
+
+	public IntBuffer acquireInts(int count) {
+		return acquire(count * 4).asIntBuffer();
+	}
+
+	/** Accepts a buffer returned by acquire, acquireFloats or acquireInts. */
+	public void release(Buffer buffer) {
+		expungeCollected();
+		Allocation allocation = outstanding.remove(MemoryUtil.memAddress0(buffer));
+		if (allocation == null) {
+			throw new IllegalStateException("Buffer was not acquired from this pool or was already released");
+		}
+		// Any view of the block keeps the block itself reachable, so the referent is still set.
+		ByteBuffer block = allocation.get();
+		allocation.clear();
+		bytesLive.addAndGet(-block.capacity());
+		if (block.capacity() > maxClassSize || bytesPooled.get() + block.capacity() > maxPooledBytes) {
+			bytesAllocated.addAndGet(-block.capacity());
+			backing.free(block);
+			return;
+		}
+		ArrayDeque<ByteBuffer> freeList = freeLists.get(classIndex(block.capacity()));
+		bytesPooled.addAndGet(block.capacity());
+		synchronized (freeList) {
+			freeList.push(block);
+		}
+	}
+
+	/** Forgets buffers the GC collected without a release and frees their memory. */
+	private void expungeCollected() {
+		Reference<? extends ByteBuffer> reference;
+		while ((reference = collected.poll()) != null) {
+			Allocation allocation = (Allocation) reference;
+			// With GC backing the address may already belong to a newer buffer; keep its entry.
+			outstanding.remove(allocation.address, allocation);
+			bytesLive.addAndGet(-allocation.capacity);
+			bytesAllocated.addAndGet(-allocation.capacity);
+			bytesCollected.addAndGet(allocation.capacity);
+			backing.freeCollected(allocation.address);
+		}
+	}
+
+	/** Frees every pooled buffer back to the backing allocator. */
+	public void trim() {
+		for (ArrayDeque<ByteBuffer> freeList : freeLists) {
+			synchronized (freeList) {
+				ByteBuffer block;
+				while ((block = freeList.poll()) != null) {
+					bytesPooled.addAndGet(-block.capacity());
+					bytesAllocated.addAndGet(-block.capacity());
+					backing.free(block);
+				}
+			}
+		}
+	}
+
+	public boolean isDebug() {
+		return debug;
+	}
+
+	public int getOutstandingCount() {
+		expungeCollected();
+		return outstanding.size();
+	}
+
+	/** Allocation sites of unreleased buffers; empty unless the pool is in debug mode. */
+	public List<String> leakReport() {
+		List<String> result = new ArrayList<>();
+		for (Allocation allocation : outstanding.values()) {
+			if (allocation.site != null) {
+				StringWriter out = new StringWriter();
+				out.append(allocation.capacity + " bytes ");
+				allocation.site.printStackTrace(new PrintWriter(out));
+				result.add(out.toString());
+			}
+		}
+		return result;
+	}
+
+	public void assertNoLeaks() {
+		expungeCollected();
+		if (!outstanding.isEmpty()) {
+			StringBuilder b = new StringBuilder();
+			b.append(outstanding.size()).append(" direct buffers not released");
+			for (String leak : leakReport()) {
+				b.append("\n").append(leak);
+			}
+			throw new IllegalStateException(b.toString());
+		}
+	}
+
+	public long getBytesLive() {
+		return bytesLive.get();
+	}
+
+	public long getPeakBytesLive() {
+		return peakBytesLive.get();
+	}
+
+	public long getBytesRecycled() {
+		return bytesRecycled.get();
+	}
+
+	public long getBytesAllocated() {
+		return bytesAllocated.get();
+	}
+
+	public long getBytesPooled() {
+		return bytesPooled.get();
+	}
+
+	/** Bytes of buffers that were never released and were reclaimed through the GC instead. */
+	public long getBytesCollected() {
+		return bytesCollected.get();
+	}
+
+	public String toString() {
+		return String.format("DirectBufferPool[live=%d, peak=%d, recycled=%d, allocated=%d, pooled=%d, collected=%d]",
+				getBytesLive(), getPeakBytesLive(), getBytesRecycled(), getBytesAllocated(), getBytesPooled(),
+				getBytesCollected());
+	}
+}
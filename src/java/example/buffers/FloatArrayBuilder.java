@@ -0,0 +1,138 @@
+package example.buffers;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Growable float array that appends without boxing.
+ *
+ * array() exposes the backing array, valid up to size(); it is replaced when the builder grows.
+ * Large fills can be split across threads with fillParallel, which reserves a range and hands
+ * disjoint segments of it to the common ForkJoin pool.
+ */
+public class FloatArrayBuilder {
+
+	public interface SegmentFiller {
+		/** Fills array[from, to). */
+		void fill(float[] array, int from, int to);
+	}
+
+	private float[] values;
+	private int size;
+
+	public FloatArrayBuilder() {
+		this(16);
+	}
+
+	public FloatArrayBuilder(int capacity) {
+		values = new float[Math.max(capacity, 1)];
+	}
+
+	public void ensureCapacity(int capacity) {
+		if (capacity > values.length) {
+			values = Arrays.copyOf(values, Math.max(capacity, values.length + (values.length >> 1)));
+		}
+	}
+
+	public FloatArrayBuilder add(float v) {
+		if (size == values.length) {
+			ensureCapacity(size + 1);
+		}
+		values[size++] = v;
+		return this;
+	}
+
+	public FloatArrayBuilder add(float x, float y) {
+		ensureCapacity(size + 2);
+		values[size++] = x;
+		values[size++] = y;
+		return this;
+	}
+
+	public FloatArrayBuilder add(float x, float y, float z) {
+		ensureCapacity(size + 3);
+		values[size++] = x;
+		values[size++] = y;
+		values[size++] = z;
+		return this;
+	}
+
+	public FloatArrayBuilder addAll(float[] vs, int offset, int length) {
+		ensureCapacity(size + length);
+		System.arraycopy(vs, offset, values, size, length);
+		size += length;
+		return this;
+	}
+
+	public FloatArrayBuilder addAll(float... vs) {
+		return addAll(vs, 0, vs.length);
+	}
+
+	/** Grows the size by count and returns the index of the first new element. */
+	public int extend(int count) {
+		ensureCapacity(size + count);
+		int start = size;
+		size += count;
+		return start;
+	}
+
+	/** Appends count elements filled by segments of at most segmentSize run in parallel. */
+	public FloatArrayBuilder fillParallel(int count, int segmentSize, SegmentFiller filler) {
+		final int start = extend(count);
+		final float[] array = values;
+		int segments = (count + segmentSize - 1) / segmentSize;
+		IntStream.range(0, segments).parallel().forEach(s -> {
+			int from = start + s * segmentSize;
+			filler.fill(array, from, Math.min(from + segmentSize, start + count));
+		});
+		return this;
+	}
+
+	public float get(int i) {
+		return values[i];
+	}
+
+	public void set(int i, float v) {
+		values[i] = v;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public float[] array() {
+		return values;
+	}
+
+	/** A heap buffer over the backing array; no copy is made. */
+	public FloatBuffer asBuffer() {
+		return FloatBuffer.wrap(values, 0, size);
+	}
+
+	public float[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+
+	/**
+	 * Hands the contents over as an array of exactly size() elements: the backing array itself when
+	 * it is full, so a presized builder is never copied. The builder is left empty with a new array.
+	 */
+	public float[] takeArray() {
+		float[] result = size == values.length ? values : Arrays.copyOf(values, size);
+		values = new float[1];
+		size = 0;
+		return result;
+	}
+
+	/** Copies the contents into a buffer from the arena with a single bulk put. */
+	public FloatBuffer toBuffer(FrameArena arena) {
+		FloatBuffer buf = arena.allocateFloats(size).put(values, 0, size);
+		buf.flip();
+		return buf;
+	}
+}
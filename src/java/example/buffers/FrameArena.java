@@ -0,0 +1,117 @@
+package example.buffers;
+
+import org.lwjgl.system.MemoryUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bump-pointer allocator for buffers that only live for one frame.
+ *
+ * Allocations are slices of a block acquired from a DirectBufferPool; when a block is full a
+ * further block is acquired, and reset() returns every block but the first to the pool. The
+ * arena is not thread safe and is meant to be used from the GL thread, with reset() called at
+ * the end of each frame. In debug mode reset() fills the released memory with 0xFF bytes, which
+ * read back as NaN floats and -1 ints, so a buffer kept past its frame shows up quickly.
+ */
+public class FrameArena {
+
+	private static final int ALIGNMENT = 16;
+
+	private final DirectBufferPool pool;
+	private final int blockSize;
+	private final List<ByteBuffer> blocks = new ArrayList<>();
+	private ByteBuffer current;
+	private int offset;
+	private long bytesThisFrame;
+	private long peakBytesPerFrame;
+
+	public FrameArena(DirectBufferPool pool, int blockSize) {
+		this.pool = pool;
+		this.blockSize = blockSize;
+	}
+
+	public ByteBuffer allocate(int size) {
+		int start = (offset + ALIGNMENT - 1) & -ALIGNMENT;
+		if (current == null || start + size > current.capacity()) {
+			current = pool.acquire(Math.max(size, blockSize));
+			current.clear();
+			blocks.add(current);
+			start = 0;
+		}
+		offset = start + size;
+		bytesThisFrame += size;
+		ByteBuffer view = current.duplicate();
+		view.clear();
+		view.position(start);
+		view.limit(start + size);
+		return view.slice().order(current.order());
+	}
+
+	public FloatBuffer allocateFloats(int count) {
+		return allocate(count * 4).asFloatBuffer();
+	}
+
+	public IntBuffer allocateInts(int count) {
+		return allocate(count * 4).asIntBuffer();
+	}
+
+	public ShortBuffer allocateShorts(int count) {
+		return allocate(count * 2).asShortBuffer();
+	}
+
+	public FloatBuffer floats(float... values) {
+		FloatBuffer buf = allocateFloats(values.length).put(values);
+		buf.flip();
+		return buf;
+	}
+
+	public IntBuffer ints(int... values) {
+		IntBuffer buf = allocateInts(values.length).put(values);
+		buf.flip();
+		return buf;
+	}
+
+	public ByteBuffer bytes(byte... values) {
+		ByteBuffer buf = allocate(values.length).put(values);
+		buf.flip();
+		return buf;
+	}
+
+	/** Invalidates every buffer handed out since the last reset. */
+	public void reset() {
+		if (pool.isDebug()) {
+			for (ByteBuffer block : blocks) {
+				MemoryUtil.memSet(MemoryUtil.memAddress0(block), 0xFF, block.capacity());
+			}
+		}
+		for (int i = blocks.size() - 1; i > 0; --i) {
+			pool.release(blocks.remove(i));
+		}
+		current = blocks.isEmpty() ? null : blocks.get(0);
+		offset = 0;
+		peakBytesPerFrame = Math.max(peakBytesPerFrame, bytesThisFrame);
+		bytesThisFrame = 0;
+	}
+
+	/** Returns every block to the pool. */
+	public void release() {
+		reset();
+		if (current != null) {
+			pool.release(blocks.remove(0));
+			current = null;
+		}
+	}
+
+	public long getBytesThisFrame() {
+		return bytesThisFrame;
+	}
+
+	public long getPeakBytesPerFrame() {
+		return peakBytesPerFrame;
+	}
+}
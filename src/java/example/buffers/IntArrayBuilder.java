@@ -0,0 +1,138 @@
+package example.buffers;
+
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Growable int array that appends without boxing.
+ *
+ * array() exposes the backing array, valid up to size(); it is replaced when the builder grows.
+ * Large fills can be split across threads with fillParallel, which reserves a range and hands
+ * disjoint segments of it to the common ForkJoin pool.
+ */
+public class IntArrayBuilder {
+
+	public interface SegmentFiller {
+		/** Fills array[from, to). */
+		void fill(int[] array, int from, int to);
+	}
+
+	private int[] values;
+	private int size;
+
+	public IntArrayBuilder() {
+		this(16);
+	}
+
+	public IntArrayBuilder(int capacity) {
+		values = new int[Math.max(capacity, 1)];
+	}
+
+	public void ensureCapacity(int capacity) {
+		if (capacity > values.length) {
+			values = Arrays.copyOf(values, Math.max(capacity, values.length + (values.length >> 1)));
+		}
+	}
+
+	public IntArrayBuilder add(int v) {
+		if (size == values.length) {
+			ensureCapacity(size + 1);
+		}
+		values[size++] = v;
+		return this;
+	}
+
+	public IntArrayBuilder add(int x, int y) {
+		ensureCapacity(size + 2);
+		values[size++] = x;
+		values[size++] = y;
+		return this;
+	}
+
+	public IntArrayBuilder add(int x, int y, int z) {
+		ensureCapacity(size + 3);
+		values[size++] = x;
+		values[size++] = y;
+		values[size++] = z;
+		return this;
+	}
+
+	public IntArrayBuilder addAll(int[] vs, int offset, int length) {
+		ensureCapacity(size + length);
+		System.arraycopy(vs, offset, values, size, length);
+		size += length;
+		return this;
+	}
+
+	public IntArrayBuilder addAll(int... vs) {
+		return addAll(vs, 0, vs.length);
+	}
+
+	/** Grows the size by count and returns the index of the first new element. */
+	public int extend(int count) {
+		ensureCapacity(size + count);
+		int start = size;
+		size += count;
+		return start;
+	}
+
+	/** Appends count elements filled by segments of at most segmentSize run in parallel. */
+	public IntArrayBuilder fillParallel(int count, int segmentSize, SegmentFiller filler) {
+		final int start = extend(count);
+		final int[] array = values;
+		int segments = (count + segmentSize - 1) / segmentSize;
+		IntStream.range(0, segments).parallel().forEach(s -> {
+			int from = start + s * segmentSize;
+			filler.fill(array, from, Math.min(from + segmentSize, start + count));
+		});
+		return this;
+	}
+
+	public int get(int i) {
+		return values[i];
+	}
+
+	public void set(int i, int v) {
+		values[i] = v;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public int[] array() {
+		return values;
+	}
+
+	/** A heap buffer over the backing array; no copy is made. */
+	public IntBuffer asBuffer() {
+		return IntBuffer.wrap(values, 0, size);
+	}
+
+	public int[] toArray() {
+		return Arrays.copyOf(values, size);
+	}
+
+	/**
+	 * Hands the contents over as an array of exactly size() elements: the backing array itself when
+	 * it is full, so a presized builder is never copied. The builder is left empty with a new array.
+	 */
+	public int[] takeArray() {
+		int[] result = size == values.length ? values : Arrays.copyOf(values, size);
+		values = new int[1];
+		size = 0;
+		return result;
+	}
+
+	/** Copies the contents into a buffer from the arena with a single bulk put. */
+	public IntBuffer toBuffer(FrameArena arena) {
+		IntBuffer buf = arena.allocateInts(size).put(values, 0, size);
+		buf.flip();
+		return buf;
+	}
+}
@@ -0,0 +1,129 @@
+package example.collision;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Moves boxes of mixed sizes around a walled world and times the broadphase per frame: the
+ * incremental update (insertion sort on coherent data), the same frame forced through a full
+ * sort, and single threaded against parallel sweeps. The first frame's pairs are checked
+ * against a brute force test of every pair.
+ *
+ * Run with: lein run -m example.collision.BroadphaseBenchmark [bodies] [frames]
+ */
+public class BroadphaseBenchmark {
+
+	static float[] x, y, z, vx, vy, vz, half;
+	static float world;
+
+	static SweepAndPrune create(int bodies, long seed) {
+		Random random = new Random(seed);
+		// Sized so a typical body overlaps a few others.
+		world = (float) Math.cbrt(bodies) * 4;
+		x = new float[bodies];
+		y = new float[bodies];
+		z = new float[bodies];
+		vx = new float[bodies];
+		vy = new float[bodies];
+		vz = new float[bodies];
+		half = new float[bodies];
+		SweepAndPrune broadphase = new SweepAndPrune(bodies);
+		for (int i = 0; i < bodies; ++i) {
+			x[i] = random.nextFloat() * world;
+			y[i] = random.nextFloat() * world;
+			z[i] = random.nextFloat() * world;
+			vx[i] = random.nextFloat() * 2 - 1;
+			vy[i] = random.nextFloat() * 2 - 1;
+			vz[i] = random.nextFloat() * 2 - 1;
+			half[i] = random.nextInt(50) == 0 ? 4 : 0.5f + random.nextFloat();
+			broadphase.add(x[i] - half[i], y[i] - half[i], z[i] - half[i], x[i] + half[i], y[i] + half[i], z[i] + half[i]);
+		}
+		return broadphase;
+	}
+
+	static void step(SweepAndPrune broadphase, float dt) {
+		for (int i = 0; i < x.length; ++i) {
+			x[i] += vx[i] * dt;
+			y[i] += vy[i] * dt;
+			z[i] += vz[i] * dt;
+			if (x[i] < 0 || x[i] > world) {
+				vx[i] = -vx[i];
+			}
+			if (y[i] < 0 || y[i] > world) {
+				vy[i] = -vy[i];
+			}
+			if (z[i] < 0 || z[i] > world) {
+				vz[i] = -vz[i];
+			}
+			broadphase.setBounds(i, x[i] - half[i], y[i] - half[i], z[i] - half[i], x[i] + half[i], y[i] + half[i],
+					z[i] + half[i]);
+		}
+	}
+
+	/** Every overlapping pair as a sorted array of (lower id << 32 | higher id). */
+	static long[] bruteForce(SweepAndPrune b) {
+		long[] found = new long[16];
+		int count = 0;
+		int n = b.size;
+		for (int i = 0; i < n; ++i) {
+			for (int j = i + 1; j < n; ++j) {
+				if (b.minX[i] <= b.maxX[j] && b.minX[j] <= b.maxX[i] && b.minY[i] <= b.maxY[j]
+						&& b.minY[j] <= b.maxY[i] && b.minZ[i] <= b.maxZ[j] && b.minZ[j] <= b.maxZ[i]) {
+					if (count == found.length) {
+						found = Arrays.copyOf(found, count * 2);
+					}
+					found[count++] = ((long) i << 32) | j;
+				}
+			}
+		}
+		return Arrays.copyOf(found, count);
+	}
+
+	static long[] pairs(SweepAndPrune b) {
+		long[] found = new long[b.getPairCount()];
+		int[] pairs = b.getPairs();
+		for (int k = 0; k < found.length; ++k) {
+			found[k] = ((long) pairs[2 * k] << 32) | pairs[2 * k + 1];
+		}
+		Arrays.sort(found);
+		return found;
+	}
+
+	public static void main(String[] args) {
+		int bodies = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int frames = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		float dt = 1 / 60f;
+
+		SweepAndPrune check = create(Math.min(bodies, 20000), 1);
+		check.update();
+		step(check, dt);
+		check.update();
+		System.out.printf("brute force check on %d bodies: %s, %d pairs%n", check.getBodyCount(),
+				Arrays.equals(bruteForce(check), pairs(check)) ? "match" : "MISMATCH", check.getPairCount());
+
+		for (boolean parallel : new boolean[] { false, true, false, true }) {
+			SweepAndPrune broadphase = create(bodies, 2);
+			broadphase.parallel = parallel;
+			broadphase.update();
+			long incremental = 0, full = 0, swaps = 0, pairs = 0;
+			for (int frame = 0; frame < frames; ++frame) {
+				step(broadphase, dt);
+				long start = System.nanoTime();
+				broadphase.update();
+				incremental += System.nanoTime() - start;
+				swaps += broadphase.getLastSwaps();
+				pairs += broadphase.getPairCount();
+				if (frame % 10 == 0) {
+					broadphase.needsFullSort = true;
+					start = System.nanoTime();
+					broadphase.update();
+					full += System.nanoTime() - start;
+				}
+			}
+			System.out.printf("%s %d bodies: incremental %.2f ms/frame, full sort %.2f ms/frame, %d pairs and %d sort moves per frame%n",
+					parallel ? "parallel" : "sequential", bodies, incremental / 1e6 / frames, full / 1e6 / ((frames + 9) / 10),
+					pairs / frames, swaps / frames);
+		}
+		System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+	}
+}
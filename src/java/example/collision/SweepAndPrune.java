@@ -0,0 +1,519 @@
+package example.collision;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Broadphase over axis aligned boxes by sweep and prune.
+ *
+ * Bounds live in primitive arrays indexed by body id. Live bodies are kept in an order sorted by
+ * their minimum on the sweep axis; each update refreshes the keys and restores the order with
+ * insertion sort, which costs little more than a linear pass while bodies move a small amount
+ * per frame. A full sort happens only after many additions or removals, or when the axis with
+ * the widest spread of centres changes. After sorting, the bounds are gathered into sorted
+ * order so the sweep reads contiguous memory.
+ *
+ * A single sweep over a crowded 3D world compares each box with every box that overlaps it on
+ * the sweep axis alone, so the sorted order is also split into a coarse grid of cells over the
+ * other two axes and each cell is swept on its own. Each pair is reported only by the cell
+ * holding the lower corner of its overlap, so the output needs no de-duplication. Cells are
+ * swept in parallel on the common ForkJoin pool for large worlds, each task appending to its
+ * own reusable int buffer, and the buffers are concatenated into the pair list as
+ * (lower id, higher id).
+ * Nothing is allocated per pair. Boxes that touch count as overlapping.
+ *
+ * Not thread safe; add, remove, setBounds and update must come from one thread.
+ */
+public class SweepAndPrune {
+
+	static final int PARALLEL_BODIES = 1 << 13;
+	static final int AXIS_CHECK_INTERVAL = 16;
+	static final int MAX_CELLS = 1 << 16;
+
+	float[] minX, minY, minZ, maxX, maxY, maxZ;
+	boolean[] live;
+	int size;
+	int[] freeIds = new int[16];
+	int freeCount;
+	// Removed since the last update; still listed in order until update compacts it.
+	int[] pendingFreeIds = new int[16];
+	int pendingFreeCount;
+
+	int axis = 0;
+	int gridAxisB = 1;
+	int[] order;
+	int orderSize;
+	int added;
+	boolean removed;
+	boolean needsFullSort = true;
+	int updates;
+
+	float[] sMin, sMax, sMinB, sMaxB, sMinC, sMaxC;
+	long[] sortKeys = new long[0];
+
+	int cellsB, cellsC, cellCount;
+	float cellLowB, cellLowC, cellScaleB, cellScaleC;
+	int[] cellStart = new int[0];
+	int[] cellFill = new int[0];
+	int[] cellIds = new int[0];
+	float[] cellMin, cellMax, cellMinB, cellMaxB, cellMinC, cellMaxC;
+
+	int[] pairs = new int[1024];
+	int pairCount;
+	int[][] chunkPairs = new int[0][];
+	int[] chunkCounts = new int[0];
+
+	long lastSwaps;
+	boolean lastFullSort;
+
+	public boolean parallel = true;
+
+	public SweepAndPrune() {
+		this(1024);
+	}
+
+	public SweepAndPrune(int capacity) {
+		capacity = Math.max(capacity, 16);
+		minX = new float[capacity];
+		minY = new float[capacity];
+		minZ = new float[capacity];
+		maxX = new float[capacity];
+		maxY = new float[capacity];
+		maxZ = new float[capacity];
+		live = new boolean[capacity];
+		order = new int[capacity];
+		allocateSorted(capacity);
+	}
+
+	void allocateSorted(int capacity) {
+		sMin = new float[capacity];
+		sMax = new float[capacity];
+		sMinB = new float[capacity];
+		sMaxB = new float[capacity];
+		sMinC = new float[capacity];
+		sMaxC = new float[capacity];
+	}
+
+	void grow(int capacity) {
+		minX = Arrays.copyOf(minX, capacity);
+		minY = Arrays.copyOf(minY, capacity);
+		minZ = Arrays.copyOf(minZ, capacity);
+		maxX = Arrays.copyOf(maxX, capacity);
+		maxY = Arrays.copyOf(maxY, capacity);
+		maxZ = Arrays.copyOf(maxZ, capacity);
+		live = Arrays.copyOf(live, capacity);
+		order = Arrays.copyOf(order, capacity);
+		allocateSorted(capacity);
+		needsFullSort = true;
+	}
+
+	/** Adds a body and returns its id. Ids of removed bodies are reused after the next update. */
+	public int add(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		int id;
+		if (freeCount > 0) {
+			id = freeIds[--freeCount];
+		} else {
+			if (size == live.length) {
+				grow(size * 2);
+			}
+			id = size++;
+		}
+		live[id] = true;
+		setBounds(id, minX, minY, minZ, maxX, maxY, maxZ);
+		if (orderSize == order.length) {
+			order = Arrays.copyOf(order, orderSize * 2);
+		}
+		order[orderSize++] = id;
+		++added;
+		return id;
+	}
+
+	public void remove(int id) {
+		if (!live[id]) {
+			throw new IllegalArgumentException("Body " + id + " is not live");
+		}
+		live[id] = false;
+		if (pendingFreeCount == pendingFreeIds.length) {
+			pendingFreeIds = Arrays.copyOf(pendingFreeIds, pendingFreeCount * 2);
+		}
+		pendingFreeIds[pendingFreeCount++] = id;
+		removed = true;
+	}
+
+	public void setBounds(int id, float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+		this.minX[id] = minX;
+		this.minY[id] = minY;
+		this.minZ[id] = minZ;
+		this.maxX[id] = maxX;
+		this.maxY[id] = maxY;
+		this.maxZ[id] = maxZ;
+	}
+
+	/** Moves a body's box by the given offset. */
+	public void translate(int id, float dx, float dy, float dz) {
+		minX[id] += dx;
+		minY[id] += dy;
+		minZ[id] += dz;
+		maxX[id] += dx;
+		maxY[id] += dy;
+		maxZ[id] += dz;
+	}
+
+	public boolean isLive(int id) {
+		return id < size && live[id];
+	}
+
+	public int getBodyCount() {
+		return orderSize;
+	}
+
+	public int getAxis() {
+		return axis;
+	}
+
+	/** Pair list from the last update: ids at 2k and 2k + 1, lower id first. Valid up to 2 * getPairCount(). */
+	public int[] getPairs() {
+		return pairs;
+	}
+
+	public int getPairCount() {
+		return pairCount;
+	}
+
+	/** Element moves made by the last insertion sort, a measure of how incoherent the frame was. */
+	public long getLastSwaps() {
+		return lastSwaps;
+	}
+
+	public boolean wasLastSortFull() {
+		return lastFullSort;
+	}
+
+	/** Restores sorted order for the current bounds and recomputes the overlapping pairs. */
+	public void update() {
+		if (removed) {
+			int n = 0;
+			for (int i = 0; i < orderSize; ++i) {
+				if (live[order[i]]) {
+					order[n++] = order[i];
+				}
+			}
+			orderSize = n;
+			if (freeCount + pendingFreeCount > freeIds.length) {
+				freeIds = Arrays.copyOf(freeIds, Math.max(freeIds.length * 2, freeCount + pendingFreeCount));
+			}
+			System.arraycopy(pendingFreeIds, 0, freeIds, freeCount, pendingFreeCount);
+			freeCount += pendingFreeCount;
+			pendingFreeCount = 0;
+			removed = false;
+			needsFullSort = true;
+		}
+		if (updates++ % AXIS_CHECK_INTERVAL == 0) {
+			chooseAxes();
+		}
+		if (added > orderSize / 8) {
+			needsFullSort = true;
+		}
+		added = 0;
+		boolean useParallel = parallel && orderSize >= PARALLEL_BODIES;
+
+		float[] axisMin = mins(axis);
+		if (needsFullSort) {
+			fullSort(axisMin, useParallel);
+			needsFullSort = false;
+			lastFullSort = true;
+			lastSwaps = 0;
+		} else {
+			refreshKeys(axisMin, useParallel);
+			lastSwaps = insertionSort();
+			lastFullSort = false;
+		}
+		gather(useParallel);
+		buildCells();
+		sweep(useParallel);
+	}
+
+	float[] mins(int a) {
+		return a == 0 ? minX : a == 1 ? minY : minZ;
+	}
+
+	float[] maxs(int a) {
+		return a == 0 ? maxX : a == 1 ? maxY : maxZ;
+	}
+
+	/**
+	 * Sweeps along the axis where box centres are most spread out, so the sweep prunes the most,
+	 * with the grid over the other two. The sweep axis only changes when another is clearly
+	 * better, since changing it costs a full sort.
+	 */
+	void chooseAxes() {
+		double[] variance = new double[3];
+		for (int a = 0; a < 3; ++a) {
+			float[] low = mins(a), high = maxs(a);
+			double sum = 0, sumSquares = 0;
+			for (int i = 0; i < orderSize; ++i) {
+				int id = order[i];
+				double c = low[id] + high[id];
+				sum += c;
+				sumSquares += c * c;
+			}
+			variance[a] = sumSquares - sum * sum / Math.max(1, orderSize);
+		}
+		int best = axis;
+		for (int a = 0; a < 3; ++a) {
+			if (variance[a] > 1.25 * variance[best]) {
+				best = a;
+			}
+		}
+		if (best != axis) {
+			axis = best;
+			needsFullSort = true;
+		}
+		int b = (axis + 1) % 3, c = (axis + 2) % 3;
+		gridAxisB = variance[b] >= variance[c] ? b : c;
+	}
+
+	/** Floats map to ints with the same ordering, then pack with the id into sortable longs. */
+	static int sortableBits(float f) {
+		int bits = Float.floatToIntBits(f);
+		return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+	}
+
+	void fullSort(float[] axisMin, boolean useParallel) {
+		int n = orderSize;
+		if (sortKeys.length < n) {
+			sortKeys = new long[order.length];
+		}
+		for (int i = 0; i < n; ++i) {
+			int id = order[i];
+			sortKeys[i] = ((long) sortableBits(axisMin[id]) << 32) | id;
+		}
+		if (useParallel) {
+			Arrays.parallelSort(sortKeys, 0, n);
+		} else {
+			Arrays.sort(sortKeys, 0, n);
+		}
+		for (int i = 0; i < n; ++i) {
+			int id = (int) sortKeys[i];
+			order[i] = id;
+			sMin[i] = axisMin[id];
+		}
+	}
+
+	void refreshKeys(final float[] axisMin, boolean useParallel) {
+		if (useParallel) {
+			IntStream.range(0, orderSize).parallel().forEach(i -> sMin[i] = axisMin[order[i]]);
+		} else {
+			for (int i = 0; i < orderSize; ++i) {
+				sMin[i] = axisMin[order[i]];
+			}
+		}
+	}
+
+	long insertionSort() {
+		long moves = 0;
+		float[] keys = sMin;
+		int[] ids = order;
+		for (int i = 1; i < orderSize; ++i) {
+			float key = keys[i];
+			if (keys[i - 1] <= key) {
+				continue;
+			}
+			int id = ids[i];
+			int j = i - 1;
+			while (j >= 0 && keys[j] > key) {
+				keys[j + 1] = keys[j];
+				ids[j + 1] = ids[j];
+				--j;
+			}
+			keys[j + 1] = key;
+			ids[j + 1] = id;
+			moves += i - 1 - j;
+		}
+		return moves;
+	}
+
+	void gather(boolean useParallel) {
+		final float[] axisMax = maxs(axis);
+		final float[] minB = mins(gridAxisB), maxB = maxs(gridAxisB);
+		final float[] minC = mins(3 - axis - gridAxisB), maxC = maxs(3 - axis - gridAxisB);
+		if (useParallel) {
+			IntStream.range(0, orderSize).parallel().forEach(i -> gather(i, axisMax, minB, maxB, minC, maxC));
+		} else {
+			for (int i = 0; i < orderSize; ++i) {
+				gather(i, axisMax, minB, maxB, minC, maxC);
+			}
+		}
+	}
+
+	void gather(int i, float[] axisMax, float[] minB, float[] maxB, float[] minC, float[] maxC) {
+		int id = order[i];
+		sMax[i] = axisMax[id];
+		sMinB[i] = minB[id];
+		sMaxB[i] = maxB[id];
+		sMinC[i] = minC[id];
+		sMaxC[i] = maxC[id];
+	}
+
+	/**
+	 * Splits the other two axes into a grid of cells about two average box extents wide and
+	 * copies, per cell and in sweep order, the id and bounds of every box that reaches into it.
+	 * Walking the sorted order keeps each cell sorted without another sort, and the copies let
+	 * the sweep of a cell read only contiguous memory.
+	 */
+	void buildCells() {
+		int n = orderSize;
+		float lowB = Float.POSITIVE_INFINITY, highB = Float.NEGATIVE_INFINITY;
+		float lowC = Float.POSITIVE_INFINITY, highC = Float.NEGATIVE_INFINITY;
+		double extentB = 0, extentC = 0;
+		for (int i = 0; i < n; ++i) {
+			lowB = Math.min(lowB, sMinB[i]);
+			highB = Math.max(highB, sMaxB[i]);
+			lowC = Math.min(lowC, sMinC[i]);
+			highC = Math.max(highC, sMaxC[i]);
+			extentB += sMaxB[i] - sMinB[i];
+			extentC += sMaxC[i] - sMinC[i];
+		}
+		int maxCells = Math.min(MAX_CELLS, n / 8);
+		cellsB = divisions(lowB, highB, extentB / Math.max(1, n), maxCells);
+		cellsC = divisions(lowC, highC, extentC / Math.max(1, n), Math.max(1, maxCells / cellsB));
+		cellLowB = lowB;
+		cellLowC = lowC;
+		cellScaleB = cellsB > 1 ? cellsB / (highB - lowB) : 0;
+		cellScaleC = cellsC > 1 ? cellsC / (highC - lowC) : 0;
+		int count = cellsB * cellsC;
+		if (cellStart.length < count + 1) {
+			cellStart = new int[count + 1];
+			cellFill = new int[count + 1];
+		}
+		Arrays.fill(cellStart, 0, count + 1, 0);
+		int entries = 0;
+		for (int i = 0; i < n; ++i) {
+			int b0 = cellB(sMinB[i]), b1 = cellB(sMaxB[i]);
+			int c0 = cellC(sMinC[i]), c1 = cellC(sMaxC[i]);
+			for (int b = b0; b <= b1; ++b) {
+				for (int c = c0; c <= c1; ++c) {
+					++cellStart[b * cellsC + c + 1];
+				}
+			}
+			entries += (b1 - b0 + 1) * (c1 - c0 + 1);
+		}
+		for (int k = 0; k < count; ++k) {
+			cellStart[k + 1] += cellStart[k];
+		}
+		if (cellIds.length < entries) {
+			int length = entries + entries / 4;
+			cellIds = new int[length];
+			cellMin = new float[length];
+			cellMax = new float[length];
+			cellMinB = new float[length];
+			cellMaxB = new float[length];
+			cellMinC = new float[length];
+			cellMaxC = new float[length];
+		}
+		System.arraycopy(cellStart, 0, cellFill, 0, count);
+		for (int i = 0; i < n; ++i) {
+			int b0 = cellB(sMinB[i]), b1 = cellB(sMaxB[i]);
+			int c0 = cellC(sMinC[i]), c1 = cellC(sMaxC[i]);
+			for (int b = b0; b <= b1; ++b) {
+				for (int c = c0; c <= c1; ++c) {
+					int e = cellFill[b * cellsC + c]++;
+					cellIds[e] = order[i];
+					cellMin[e] = sMin[i];
+					cellMax[e] = sMax[i];
+					cellMinB[e] = sMinB[i];
+					cellMaxB[e] = sMaxB[i];
+					cellMinC[e] = sMinC[i];
+					cellMaxC[e] = sMaxC[i];
+				}
+			}
+		}
+		cellCount = count;
+	}
+
+	static int divisions(float low, float high, double averageExtent, int max) {
+		if (max <= 1 || !(high > low)) {
+			return 1;
+		}
+		double width = Math.max(2 * averageExtent, (high - low) / max);
+		return (int) Math.max(1, Math.min(Math.ceil((high - low) / width), max));
+	}
+
+	int cellB(float v) {
+		int b = (int) ((v - cellLowB) * cellScaleB);
+		return b < 0 ? 0 : b >= cellsB ? cellsB - 1 : b;
+	}
+
+	int cellC(float v) {
+		int c = (int) ((v - cellLowC) * cellScaleC);
+		return c < 0 ? 0 : c >= cellsC ? cellsC - 1 : c;
+	}
+
+	void sweep(boolean useParallel) {
+		int chunks = useParallel ? Math.min(cellCount, 8 * Runtime.getRuntime().availableProcessors()) : 1;
+		chunks = Math.max(chunks, 1);
+		if (chunkPairs.length < chunks) {
+			int[][] grown = Arrays.copyOf(chunkPairs, chunks);
+			for (int c = chunkPairs.length; c < chunks; ++c) {
+				grown[c] = new int[256];
+			}
+			chunkPairs = grown;
+			chunkCounts = new int[chunks];
+		}
+		final int chunkCount = chunks;
+		final int cells = cellCount;
+		if (chunks > 1) {
+			IntStream.range(0, chunks).parallel().forEach(c -> sweepCells(c, cells * c / chunkCount, cells * (c + 1) / chunkCount));
+		} else {
+			sweepCells(0, 0, cells);
+		}
+		int total = 0;
+		for (int c = 0; c < chunks; ++c) {
+			total += chunkCounts[c];
+		}
+		if (pairs.length < total * 2) {
+			pairs = new int[Math.max(total * 2, pairs.length * 2)];
+		}
+		int offset = 0;
+		for (int c = 0; c < chunks; ++c) {
+			System.arraycopy(chunkPairs[c], 0, pairs, offset, chunkCounts[c] * 2);
+			offset += chunkCounts[c] * 2;
+		}
+		pairCount = total;
+	}
+
+	/**
+	 * Sweeps cells [fromCell, toCell). Two boxes sharing several cells are reported only by the
+	 * cell holding the lower corner of their overlap on the grid axes.
+	 */
+	void sweepCells(int chunk, int fromCell, int toCell) {
+		int[] out = chunkPairs[chunk];
+		int count = 0;
+		float[] mins = cellMin, maxs = cellMax, minB = cellMinB, maxB = cellMaxB, minC = cellMinC, maxC = cellMaxC;
+		int[] ids = cellIds;
+		for (int cell = fromCell; cell < toCell; ++cell) {
+			int end = cellStart[cell + 1];
+			for (int i = cellStart[cell]; i < end; ++i) {
+				float extent = maxs[i];
+				float bLow = minB[i], bHigh = maxB[i], cLow = minC[i], cHigh = maxC[i];
+				for (int j = i + 1; j < end; ++j) {
+					if (mins[j] > extent) {
+						break;
+					}
+					if (minB[j] <= bHigh && bLow <= maxB[j] && minC[j] <= cHigh && cLow <= maxC[j]
+							&& cellB(Math.max(bLow, minB[j])) * cellsC + cellC(Math.max(cLow, minC[j])) == cell) {
+						if (count * 2 + 2 > out.length) {
+							out = Arrays.copyOf(out, out.length * 2);
+							chunkPairs[chunk] = out;
+						}
+						int a = ids[i], b = ids[j];
+						out[count * 2] = Math.min(a, b);
+						out[count * 2 + 1] = Math.max(a, b);
+						++count;
+					}
+				}
+			}
+		}
+		chunkCounts[chunk] = count;
+	}
+}
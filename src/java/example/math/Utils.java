@@ -1,10 +1,15 @@
 package example.math;
 
+import example.buffers.DirectBufferPool;
+import example.buffers.FloatArrayBuilder;
+import example.buffers.IntArrayBuilder;
+import example.buffers.ShortArrayBuilder;
 import org.lwjgl.BufferUtils;
 
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -46,6 +51,72 @@ public class Utils {
 		return buf;
 	}
 
+	public static IntBuffer toIntBuffer(IntArrayBuilder ints) {
+		IntBuffer buf = BufferUtils.createIntBuffer(ints.size()).put(ints.array(), 0, ints.size());
+		buf.flip();
+		return buf;
+	}
+
+	public static FloatBuffer toFloatBuffer(FloatArrayBuilder floats) {
+		FloatBuffer buf = BufferUtils.createFloatBuffer(floats.size()).put(floats.array(), 0, floats.size());
+		buf.flip();
+		return buf;
+	}
+
+	public static ShortBuffer toShortBuffer(ShortArrayBuilder shorts) {
+		ShortBuffer buf = BufferUtils.createShortBuffer(shorts.size()).put(shorts.array(), 0, shorts.size());
+		buf.flip();
+		return buf;
+	}
+
+	public static FloatBuffer toFloatBuffer(DirectBufferPool pool, float[] floats) {
+		FloatBuffer buf = pool.acquireFloats(floats.length).put(floats);
+		buf.flip();
+		return buf;
+	}
+
+	public static IntBuffer toIntBuffer(DirectBufferPool pool, int[] ints) {
+		IntBuffer buf = pool.acquireInts(ints.length).put(ints);
+		buf.flip();
+		return buf;
+	}
+
+	public static ByteBuffer toByteBuffer(DirectBufferPool pool, byte[] bytes) {
+		ByteBuffer buf = pool.acquire(bytes.length).put(bytes);
+		buf.flip();
+		return buf;
+	}
+
+	public static FloatBuffer toFloatBuffer(DirectBufferPool pool, FloatArrayBuilder floats) {
+		FloatBuffer buf = pool.acquireFloats(floats.size()).put(floats.array(), 0, floats.size());
+		buf.flip();
+		return buf;
+	}
+
+	public static IntBuffer toIntBuffer(DirectBufferPool pool, IntArrayBuilder ints) {
+		IntBuffer buf = pool.acquireInts(ints.size()).put(ints.array(), 0, ints.size());
+		buf.flip();
+		return buf;
+	}
+
+	public static FloatBuffer toFloatBuffer(DirectBufferPool pool, List<Float> floats) {
+		FloatBuffer buf = pool.acquireFloats(floats.size());
+		for (Float value : floats) {
+			buf.put(value);
+		}
+		buf.flip();
+		return buf;
+	}
+
+	public static IntBuffer toIntBuffer(DirectBufferPool pool, List<Integer> ints) {
+		IntBuffer buf = pool.acquireInts(ints.size());
+		for (Integer value : ints) {
+			buf.put(value);
+		}
+		buf.flip();
+		return buf;
+	}
+
 	public static ByteBuffer toByteBuffer(String name) {
 		byte[] bytes = name.getBytes();
 		ByteBuffer buf = BufferUtils.createByteBuffer(bytes.length + 1);
@@ -67,6 +138,22 @@ public class Utils {
 		return range(0, upper);
 	}
 
+	public static IntArrayBuilder rangeBuilder(int lower, int upper) {
+		IntArrayBuilder result = new IntArrayBuilder(Math.max(upper - lower, 0));
+		for (int i = lower; i < upper; ++i) {
+			result.add(i);
+		}
+		return result;
+	}
+
+	public static int[] rangeArray(int lower, int upper) {
+		int[] result = new int[Math.max(upper - lower, 0)];
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = lower + i;
+		}
+		return result;
+	}
+
 	public static float clamp(float v, float l, float u) {
 		if (v < l) {
 			return l;
@@ -127,6 +214,10 @@ public class Utils {
 		return result;
 	}
 
+	public static int[] toIntArray(IntArrayBuilder is) {
+		return is.toArray();
+	}
+
 	public static int[] toIntArray(Integer ... is) {
 		int[] result = new int[is.length];
 		int idx = 0;
@@ -155,6 +246,15 @@ public class Utils {
 		return result;
 	}
 
+	public static float[] toDoubleArray(IntArrayBuilder vs) {
+		float[] result = new float[vs.size()];
+		int[] values = vs.array();
+		for (int i = 0; i < result.length; ++i) {
+			result[i] = values[i];
+		}
+		return result;
+	}
+
 	public static float[] toDoubleArray(float ... vs) {
 		float[] result = new float[vs.length];
 		int idx = 0;
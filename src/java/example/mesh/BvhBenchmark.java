@@ -0,0 +1,130 @@
+package example.mesh;
+
+import org.joml.Matrix4f;
+
+import java.util.Random;
+
+/**
+ * Builds a TriangleBvh over a displaced sphere and measures build time and closest-hit and
+ * any-hit throughput in rays per second, single threaded and batched across cores.
+ *
+ * Run with: lein run -m example.mesh.BvhBenchmark [segments] [rays]
+ */
+public class BvhBenchmark {
+
+	static float[] positions;
+	static int[] triangles;
+
+	/** A sphere of radius about 1 with segments rings of 2 * segments quads. */
+	static void sphere(int segments) {
+		int rings = segments;
+		int sectors = segments * 2;
+		positions = new float[(rings + 1) * (sectors + 1) * 3];
+		triangles = new int[rings * sectors * 6];
+		int p = 0;
+		for (int r = 0; r <= rings; ++r) {
+			double theta = Math.PI * r / rings;
+			for (int s = 0; s <= sectors; ++s) {
+				double phi = 2 * Math.PI * s / sectors;
+				double radius = 1 + 0.05 * Math.sin(7 * theta) * Math.cos(5 * phi);
+				positions[p++] = (float) (radius * Math.sin(theta) * Math.cos(phi));
+				positions[p++] = (float) (radius * Math.cos(theta));
+				positions[p++] = (float) (radius * Math.sin(theta) * Math.sin(phi));
+			}
+		}
+		int t = 0;
+		for (int r = 0; r < rings; ++r) {
+			for (int s = 0; s < sectors; ++s) {
+				int a = r * (sectors + 1) + s;
+				int b = a + sectors + 1;
+				triangles[t++] = a;
+				triangles[t++] = b;
+				triangles[t++] = a + 1;
+				triangles[t++] = a + 1;
+				triangles[t++] = b;
+				triangles[t++] = b + 1;
+			}
+		}
+	}
+
+	/** Rays from random points on a sphere of radius 3 towards random points near the origin. */
+	static float[] rays(int count, long seed) {
+		Random random = new Random(seed);
+		float[] rays = new float[count * 6];
+		for (int i = 0; i < count; ++i) {
+			double theta = Math.acos(2 * random.nextDouble() - 1);
+			double phi = 2 * Math.PI * random.nextDouble();
+			float ox = (float) (3 * Math.sin(theta) * Math.cos(phi));
+			float oy = (float) (3 * Math.cos(theta));
+			float oz = (float) (3 * Math.sin(theta) * Math.sin(phi));
+			rays[i * 6] = ox;
+			rays[i * 6 + 1] = oy;
+			rays[i * 6 + 2] = oz;
+			rays[i * 6 + 3] = (float) (random.nextGaussian() * 0.5) - ox;
+			rays[i * 6 + 4] = (float) (random.nextGaussian() * 0.5) - oy;
+			rays[i * 6 + 5] = (float) (random.nextGaussian() * 0.5) - oz;
+		}
+		return rays;
+	}
+
+	public static void main(String[] args) {
+		int segments = args.length > 0 ? Integer.parseInt(args[0]) : 700;
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		sphere(segments);
+		System.out.println("triangles = " + triangles.length / 3 + ", rays = " + count);
+
+		TriangleBvh bvh = null;
+		for (boolean parallel : new boolean[] { false, true }) {
+			long best = Long.MAX_VALUE;
+			for (int i = 0; i < 3; ++i) {
+				long start = System.nanoTime();
+				bvh = new TriangleBvh(positions, triangles, parallel);
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			System.out.println(String.format("build %-10s %8.1f ms, %d nodes",
+					parallel ? "parallel" : "sequential", best / 1e6, bvh.getNodeCount()));
+		}
+
+		float[] rays = rays(count, 42);
+		Matrix4f identity = new Matrix4f();
+		RayHit hit = new RayHit();
+		for (int pass = 0; pass < 2; ++pass) {
+			long start = System.nanoTime();
+			int hits = 0;
+			for (int r = 0; r < count; ++r) {
+				int o = r * 6;
+				hit.reset(Float.POSITIVE_INFINITY);
+				if (bvh.closestHit(rays[o], rays[o + 1], rays[o + 2], rays[o + 3], rays[o + 4], rays[o + 5], hit)) {
+					hits++;
+				}
+			}
+			report("closest hit", count, System.nanoTime() - start, hits);
+
+			start = System.nanoTime();
+			hits = 0;
+			for (int r = 0; r < count; ++r) {
+				int o = r * 6;
+				if (bvh.anyHit(rays[o], rays[o + 1], rays[o + 2], rays[o + 3], rays[o + 4], rays[o + 5], Float.POSITIVE_INFINITY)) {
+					hits++;
+				}
+			}
+			report("any hit", count, System.nanoTime() - start, hits);
+
+			float[] t = new float[count];
+			int[] triangle = new int[count];
+			start = System.nanoTime();
+			bvh.closestHits(identity, rays, t, triangle);
+			hits = 0;
+			for (int r = 0; r < count; ++r) {
+				if (triangle[r] >= 0) {
+					hits++;
+				}
+			}
+			report("batched", count, System.nanoTime() - start, hits);
+		}
+	}
+
+	static void report(String name, int count, long nanos, int hits) {
+		System.out.println(String.format("%-12s %12.0f rays/s (%d hits)", name, count / (nanos / 1e9), hits));
+	}
+}
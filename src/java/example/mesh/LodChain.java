@@ -0,0 +1,32 @@
+package example.mesh;
+
+import java.util.List;
+
+/**
+ * Levels of detail of one mesh, finest first, plus the bounding sphere of its positions which
+ * LodSelector uses to estimate the distance to the viewer.
+ */
+public class LodChain {
+
+	public final List<LodLevel> levels;
+	public final float centerX;
+	public final float centerY;
+	public final float centerZ;
+	public final float radius;
+
+	public LodChain(List<LodLevel> levels, float centerX, float centerY, float centerZ, float radius) {
+		this.levels = levels;
+		this.centerX = centerX;
+		this.centerY = centerY;
+		this.centerZ = centerZ;
+		this.radius = radius;
+	}
+
+	public int size() {
+		return levels.size();
+	}
+
+	public LodLevel get(int i) {
+		return levels.get(i);
+	}
+}
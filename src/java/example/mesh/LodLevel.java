@@ -0,0 +1,24 @@
+package example.mesh;
+
+/**
+ * One level of detail: an index buffer into the original vertex array together with the
+ * geometric error introduced while producing it, in model units.
+ */
+public class LodLevel {
+
+	public final int[] triangles;
+	public final float error;
+
+	public LodLevel(int[] triangles, float error) {
+		this.triangles = triangles;
+		this.error = error;
+	}
+
+	public int getTriangleCount() {
+		return triangles.length / 3;
+	}
+
+	public String toString() {
+		return String.format("LodLevel[triangles=%d, error=%f]", getTriangleCount(), error);
+	}
+}
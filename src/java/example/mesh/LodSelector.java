@@ -0,0 +1,51 @@
+package example.mesh;
+
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+
+/**
+ * Chooses a level of detail from the screen-space size of its error.
+ *
+ * The recorded error of a level is scaled by the model matrix and projected at the nearest
+ * point of the mesh's bounding sphere; the coarsest level whose projected error is within
+ * maxPixelError pixels is used. Holds scratch state, so keep one per entity and use it from
+ * one thread.
+ */
+public class LodSelector {
+
+	private static final float MIN_DISTANCE = 1e-3f;
+
+	private final float maxPixelError;
+	private final Matrix4f modelView = new Matrix4f();
+	private final Vector3f center = new Vector3f();
+	private final Vector3f scale = new Vector3f();
+
+	public LodSelector(float maxPixelError) {
+		this.maxPixelError = maxPixelError;
+	}
+
+	/** Pixels per model unit at the nearest point of the bounding sphere. */
+	public float pixelsPerUnit(LodChain chain, Matrix4fc projection, Matrix4fc view, Matrix4fc model, float viewportHeight) {
+		modelView.set(view).mul(model);
+		modelView.getScale(scale);
+		float maxScale = Math.max(scale.x, Math.max(scale.y, scale.z));
+		modelView.transformPosition(center.set(chain.centerX, chain.centerY, chain.centerZ));
+		float pixelsPerViewUnit = projection.m11() * viewportHeight * 0.5f;
+		if (projection.m23() != 0) {
+			float distance = Math.max(-center.z - chain.radius * maxScale, MIN_DISTANCE);
+			pixelsPerViewUnit /= distance;
+		}
+		return pixelsPerViewUnit * maxScale;
+	}
+
+	public int select(LodChain chain, Matrix4fc projection, Matrix4fc view, Matrix4fc model, float viewportHeight) {
+		float pixelsPerUnit = pixelsPerUnit(chain, projection, view, model, viewportHeight);
+		for (int i = chain.size() - 1; i > 0; --i) {
+			if (chain.get(i).error * pixelsPerUnit <= maxPixelError) {
+				return i;
+			}
+		}
+		return 0;
+	}
+}
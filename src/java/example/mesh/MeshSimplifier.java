@@ -0,0 +1,571 @@
+package example.mesh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Quadric error metric simplifier (Garland and Heckbert) producing a chain of index buffers.
+ *
+ * Edges are collapsed onto one of their end points, so every level indexes the original vertex
+ * array and only needs its own element buffer. Each vertex carries the sum of the plane
+ * quadrics of its triangles; the cost of collapsing u onto v is the squared distance of v from
+ * the planes accumulated by u and v. Boundary edges, which include uv and normal seams since
+ * the simplifier works on vertex indices, get an extra perpendicular plane so that borders are
+ * preserved. Collapses that would flip a triangle are skipped.
+ *
+ * The error recorded for a level is the square root of the largest collapse cost so far. Plane
+ * quadrics are not area weighted, so it is measured in model units.
+ */
+public class MeshSimplifier {
+
+	private static final double BOUNDARY_WEIGHT = 10.0;
+
+	private final float[] positions;
+	private final int[] triangles;
+	private final int vertexCount;
+	private final int triangleCount;
+
+	private final double[] quadrics;
+	private final int[] collapsedTo;
+	private final int[] stamp;
+	private final int[] mark;
+	private int markCounter;
+	private final boolean[] deadTriangle;
+	private int liveTriangles;
+
+	private final int[][] vertexTriangles;
+	private final int[] vertexTriangleCount;
+
+	private final EdgeHeap heap = new EdgeHeap();
+	private double maxCost;
+
+	public MeshSimplifier(float[] positions, int[] triangles) {
+		this.positions = positions;
+		this.triangles = Arrays.copyOf(triangles, triangles.length);
+		this.vertexCount = positions.length / 3;
+		this.triangleCount = triangles.length / 3;
+		this.quadrics = new double[vertexCount * 10];
+		this.collapsedTo = new int[vertexCount];
+		this.stamp = new int[vertexCount];
+		this.mark = new int[vertexCount];
+		this.deadTriangle = new boolean[triangleCount];
+		this.liveTriangles = triangleCount;
+		for (int v = 0; v < vertexCount; ++v) {
+			collapsedTo[v] = -1;
+		}
+
+		vertexTriangleCount = new int[vertexCount];
+		for (int i = 0; i < this.triangles.length; ++i) {
+			vertexTriangleCount[this.triangles[i]]++;
+		}
+		vertexTriangles = new int[vertexCount][];
+		for (int v = 0; v < vertexCount; ++v) {
+			vertexTriangles[v] = new int[vertexTriangleCount[v]];
+			vertexTriangleCount[v] = 0;
+		}
+		for (int i = 0; i < this.triangles.length; ++i) {
+			int v = this.triangles[i];
+			vertexTriangles[v][vertexTriangleCount[v]++] = i / 3;
+		}
+
+		for (int t = 0; t < triangleCount; ++t) {
+			if (isDegenerate(t)) {
+				deadTriangle[t] = true;
+				liveTriangles--;
+			} else {
+				addTriangleQuadric(t);
+			}
+		}
+		addEdges();
+	}
+
+	/** Builds levels until the triangle count drops below minTriangles or maxLevels is reached. */
+	public LodChain build(float ratio, int minTriangles, int maxLevels) {
+		List<LodLevel> levels = new ArrayList<>();
+		levels.add(new LodLevel(liveTriangleIndices(), 0));
+		while (levels.size() < maxLevels && liveTriangles > minTriangles) {
+			int previous = liveTriangles;
+			int target = Math.max(minTriangles, (int) (previous * ratio));
+			simplifyTo(target);
+			if (liveTriangles >= previous) {
+				break;
+			}
+			levels.add(new LodLevel(liveTriangleIndices(), (float) Math.sqrt(maxCost)));
+		}
+		return new LodChain(levels, boundsCenter(0), boundsCenter(1), boundsCenter(2), boundsRadius());
+	}
+
+	public static LodChain build(float[] positions, int[] triangles, float ratio, int minTriangles, int maxLevels) {
+		return new MeshSimplifier(positions, triangles).build(ratio, minTriangles, maxLevels);
+	}
+
+	/** Simplifies each mesh on the common ForkJoin pool. */
+	public static List<LodChain> buildAll(final List<float[]> positions, final List<int[]> triangles,
+			final float ratio, final int minTriangles, final int maxLevels) {
+		final LodChain[] result = new LodChain[positions.size()];
+		IntStream.range(0, result.length).parallel().forEach(
+				i -> result[i] = build(positions.get(i), triangles.get(i), ratio, minTriangles, maxLevels));
+		return Arrays.asList(result);
+	}
+
+	public int getLiveTriangleCount() {
+		return liveTriangles;
+	}
+
+	public void simplifyTo(int targetTriangles) {
+		while (liveTriangles > targetTriangles && heap.size() > 0) {
+			int from = heap.topFrom();
+			int to = heap.topTo();
+			int fromStamp = heap.topFromStamp();
+			int toStamp = heap.topToStamp();
+			double cost = heap.topCost();
+			heap.pop();
+			if (collapsedTo[from] != -1 || collapsedTo[to] != -1
+					|| stamp[from] != fromStamp || stamp[to] != toStamp) {
+				continue;
+			}
+			if (flips(from, to)) {
+				continue;
+			}
+			collapse(from, to);
+			maxCost = Math.max(maxCost, cost);
+		}
+	}
+
+	private boolean isDegenerate(int t) {
+		int a = triangles[t * 3];
+		int b = triangles[t * 3 + 1];
+		int c = triangles[t * 3 + 2];
+		return a == b || b == c || a == c;
+	}
+
+	private void addTriangleQuadric(int t) {
+		int a = triangles[t * 3] * 3;
+		int b = triangles[t * 3 + 1] * 3;
+		int c = triangles[t * 3 + 2] * 3;
+		double ux = positions[b] - positions[a], uy = positions[b + 1] - positions[a + 1], uz = positions[b + 2] - positions[a + 2];
+		double vx = positions[c] - positions[a], vy = positions[c + 1] - positions[a + 1], vz = positions[c + 2] - positions[a + 2];
+		double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+		double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+		if (length == 0) {
+			return;
+		}
+		nx /= length;
+		ny /= length;
+		nz /= length;
+		double d = -(nx * positions[a] + ny * positions[a + 1] + nz * positions[a + 2]);
+		for (int k = 0; k < 3; ++k) {
+			addPlane(triangles[t * 3 + k], nx, ny, nz, d, 1.0);
+		}
+	}
+
+	private void addPlane(int v, double a, double b, double c, double d, double w) {
+		int q = v * 10;
+		quadrics[q] += w * a * a;
+		quadrics[q + 1] += w * a * b;
+		quadrics[q + 2] += w * a * c;
+		quadrics[q + 3] += w * a * d;
+		quadrics[q + 4] += w * b * b;
+		quadrics[q + 5] += w * b * c;
+		quadrics[q + 6] += w * b * d;
+		quadrics[q + 7] += w * c * c;
+		quadrics[q + 8] += w * c * d;
+		quadrics[q + 9] += w * d * d;
+	}
+
+	/** Finds unique edges, adds boundary planes and queues the initial collapses. */
+	private void addEdges() {
+		long[] keys = new long[liveTriangles * 3];
+		int n = 0;
+		for (int t = 0; t < triangleCount; ++t) {
+			if (deadTriangle[t]) {
+				continue;
+			}
+			for (int k = 0; k < 3; ++k) {
+				int a = triangles[t * 3 + k];
+				int b = triangles[t * 3 + (k + 1) % 3];
+				keys[n++] = ((long) Math.min(a, b) << 32) | Math.max(a, b);
+			}
+		}
+		long[] sorted = keys;
+		Arrays.sort(sorted);
+		for (int i = 0; i < n; ) {
+			int j = i;
+			while (j < n && sorted[j] == sorted[i]) {
+				++j;
+			}
+			int a = (int) (sorted[i] >>> 32);
+			int b = (int) sorted[i];
+			if (j - i == 1) {
+				addBoundaryPlane(a, b, findTriangle(a, b));
+			}
+			i = j;
+		}
+		for (int i = 0; i < n; ) {
+			int j = i;
+			while (j < n && sorted[j] == sorted[i]) {
+				++j;
+			}
+			pushEdge((int) (sorted[i] >>> 32), (int) sorted[i]);
+			i = j;
+		}
+	}
+
+	private int findTriangle(int a, int b) {
+		for (int k = 0; k < vertexTriangleCount[a]; ++k) {
+			int t = vertexTriangles[a][k];
+			if (!deadTriangle[t] && (triangles[t * 3] == b || triangles[t * 3 + 1] == b || triangles[t * 3 + 2] == b)) {
+				return t;
+			}
+		}
+		return -1;
+	}
+
+	private void addBoundaryPlane(int a, int b, int t) {
+		if (t < 0) {
+			return;
+		}
+		int i0 = triangles[t * 3] * 3, i1 = triangles[t * 3 + 1] * 3, i2 = triangles[t * 3 + 2] * 3;
+		double ux = positions[i1] - positions[i0], uy = positions[i1 + 1] - positions[i0 + 1], uz = positions[i1 + 2] - positions[i0 + 2];
+		double vx = positions[i2] - positions[i0], vy = positions[i2 + 1] - positions[i0 + 1], vz = positions[i2 + 2] - positions[i0 + 2];
+		double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+		double ex = positions[b * 3] - positions[a * 3];
+		double ey = positions[b * 3 + 1] - positions[a * 3 + 1];
+		double ez = positions[b * 3 + 2] - positions[a * 3 + 2];
+		double px = ey * nz - ez * ny, py = ez * nx - ex * nz, pz = ex * ny - ey * nx;
+		double length = Math.sqrt(px * px + py * py + pz * pz);
+		if (length == 0) {
+			return;
+		}
+		px /= length;
+		py /= length;
+		pz /= length;
+		double d = -(px * positions[a * 3] + py * positions[a * 3 + 1] + pz * positions[a * 3 + 2]);
+		addPlane(a, px, py, pz, d, BOUNDARY_WEIGHT);
+		addPlane(b, px, py, pz, d, BOUNDARY_WEIGHT);
+	}
+
+	private double cost(int a, int b, int at) {
+		int qa = a * 10, qb = b * 10;
+		double x = positions[at * 3], y = positions[at * 3 + 1], z = positions[at * 3 + 2];
+		double q0 = quadrics[qa] + quadrics[qb];
+		double q1 = quadrics[qa + 1] + quadrics[qb + 1];
+		double q2 = quadrics[qa + 2] + quadrics[qb + 2];
+		double q3 = quadrics[qa + 3] + quadrics[qb + 3];
+		double q4 = quadrics[qa + 4] + quadrics[qb + 4];
+		double q5 = quadrics[qa + 5] + quadrics[qb + 5];
+		double q6 = quadrics[qa + 6] + quadrics[qb + 6];
+		double q7 = quadrics[qa + 7] + quadrics[qb + 7];
+		double q8 = quadrics[qa + 8] + quadrics[qb + 8];
+		double q9 = quadrics[qa + 9] + quadrics[qb + 9];
+		double result = q0 * x * x + 2 * q1 * x * y + 2 * q2 * x * z + 2 * q3 * x
+				+ q4 * y * y + 2 * q5 * y * z + 2 * q6 * y
+				+ q7 * z * z + 2 * q8 * z
+				+ q9;
+		return Math.max(result, 0);
+	}
+
+	private void pushEdge(int a, int b) {
+		double ab = cost(a, b, b);
+		double ba = cost(a, b, a);
+		if (ab <= ba) {
+			heap.push(ab, a, b, stamp[a], stamp[b]);
+		} else {
+			heap.push(ba, b, a, stamp[b], stamp[a]);
+		}
+	}
+
+	/** True if moving from onto to would turn any surviving triangle around from upside down. */
+	private boolean flips(int from, int to) {
+		for (int k = 0; k < vertexTriangleCount[from]; ++k) {
+			int t = vertexTriangles[from][k];
+			if (deadTriangle[t]) {
+				continue;
+			}
+			int a = triangles[t * 3], b = triangles[t * 3 + 1], c = triangles[t * 3 + 2];
+			if (a == to || b == to || c == to) {
+				continue;
+			}
+			if (normalDot(a, b, c, from, to) <= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Dot product of the normals of triangle abc before and after moving from onto to. */
+	private double normalDot(int a, int b, int c, int from, int to) {
+		int pa = a * 3, pb = b * 3, pc = c * 3;
+		double ux = positions[pb] - positions[pa], uy = positions[pb + 1] - positions[pa + 1], uz = positions[pb + 2] - positions[pa + 2];
+		double vx = positions[pc] - positions[pa], vy = positions[pc + 1] - positions[pa + 1], vz = positions[pc + 2] - positions[pa + 2];
+		double nx = uy * vz - uz * vy, ny = uz * vx - ux * vz, nz = ux * vy - uy * vx;
+		pa = (a == from ? to : a) * 3;
+		pb = (b == from ? to : b) * 3;
+		pc = (c == from ? to : c) * 3;
+		ux = positions[pb] - positions[pa];
+		uy = positions[pb + 1] - positions[pa + 1];
+		uz = positions[pb + 2] - positions[pa + 2];
+		vx = positions[pc] - positions[pa];
+		vy = positions[pc + 1] - positions[pa + 1];
+		vz = positions[pc + 2] - positions[pa + 2];
+		return nx * (uy * vz - uz * vy) + ny * (uz * vx - ux * vz) + nz * (ux * vy - uy * vx);
+	}
+
+	private void collapse(int from, int to) {
+		for (int k = 0; k < vertexTriangleCount[from]; ++k) {
+			int t = vertexTriangles[from][k];
+			if (deadTriangle[t]) {
+				continue;
+			}
+			int base = t * 3;
+			if (triangles[base] == to || triangles[base + 1] == to || triangles[base + 2] == to) {
+				deadTriangle[t] = true;
+				liveTriangles--;
+				continue;
+			}
+			for (int i = base; i < base + 3; ++i) {
+				if (triangles[i] == from) {
+					triangles[i] = to;
+				}
+			}
+		}
+		for (int i = 0; i < 10; ++i) {
+			quadrics[to * 10 + i] += quadrics[from * 10 + i];
+		}
+		collapsedTo[from] = to;
+		stamp[to]++;
+		mergeTriangles(from, to);
+
+		int current = ++markCounter;
+		mark[to] = current;
+		for (int k = 0; k < vertexTriangleCount[to]; ++k) {
+			int t = vertexTriangles[to][k];
+			for (int i = t * 3; i < t * 3 + 3; ++i) {
+				int w = triangles[i];
+				if (mark[w] != current) {
+					mark[w] = current;
+					pushEdge(to, w);
+				}
+			}
+		}
+	}
+
+	/** Leaves the live triangles of both vertices on the list of to, and drops the list of from. */
+	private void mergeTriangles(int from, int to) {
+		int[] list = vertexTriangles[to];
+		int n = 0;
+		for (int k = 0; k < vertexTriangleCount[to]; ++k) {
+			if (!deadTriangle[list[k]]) {
+				list[n++] = list[k];
+			}
+		}
+		int[] other = vertexTriangles[from];
+		for (int k = 0; k < vertexTriangleCount[from]; ++k) {
+			if (!deadTriangle[other[k]]) {
+				if (n == list.length) {
+					list = Arrays.copyOf(list, Math.max(4, n * 2));
+				}
+				list[n++] = other[k];
+			}
+		}
+		vertexTriangles[to] = list;
+		vertexTriangleCount[to] = n;
+		vertexTriangles[from] = null;
+		vertexTriangleCount[from] = 0;
+	}
+
+	private int[] liveTriangleIndices() {
+		int[] result = new int[liveTriangles * 3];
+		int n = 0;
+		for (int t = 0; t < triangleCount; ++t) {
+			if (!deadTriangle[t]) {
+				result[n++] = triangles[t * 3];
+				result[n++] = triangles[t * 3 + 1];
+				result[n++] = triangles[t * 3 + 2];
+			}
+		}
+		return result;
+	}
+
+	private float boundsCenter(int axis) {
+		if (vertexCount == 0) {
+			return 0;
+		}
+		float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+		for (int v = 0; v < vertexCount; ++v) {
+			min = Math.min(min, positions[v * 3 + axis]);
+			max = Math.max(max, positions[v * 3 + axis]);
+		}
+		return (min + max) / 2;
+	}
+
+	private float boundsRadius() {
+		float cx = boundsCenter(0), cy = boundsCenter(1), cz = boundsCenter(2);
+		double r = 0;
+		for (int v = 0; v < vertexCount; ++v) {
+			double dx = positions[v * 3] - cx, dy = positions[v * 3 + 1] - cy, dz = positions[v * 3 + 2] - cz;
+			r = Math.max(r, dx * dx + dy * dy + dz * dz);
+		}
+		return (float) Math.sqrt(r);
+	}
+
+	/**
+	 * Largest distance from a vertex used by the original triangles to the simplified surface.
+	 * Brute force, O(vertices * triangles); meant for validating levels in tests.
+	 */
+	public static float deviation(float[] positions, int[] original, int[] simplified) {
+		boolean[] used = new boolean[positions.length / 3];
+		for (int i : original) {
+			used[i] = true;
+		}
+		double worst = 0;
+		for (int v = 0; v < used.length; ++v) {
+			if (!used[v]) {
+				continue;
+			}
+			double best = Double.POSITIVE_INFINITY;
+			for (int t = 0; t < simplified.length; t += 3) {
+				best = Math.min(best, pointTriangleDistanceSquared(positions, v, simplified[t], simplified[t + 1], simplified[t + 2]));
+			}
+			worst = Math.max(worst, best);
+		}
+		return (float) Math.sqrt(worst);
+	}
+
+	/** Closest point on triangle, after Ericson, Real-Time Collision Detection 5.1.5. */
+	static double pointTriangleDistanceSquared(float[] positions, int p, int a, int b, int c) {
+		double px = positions[p * 3], py = positions[p * 3 + 1], pz = positions[p * 3 + 2];
+		double ax = positions[a * 3], ay = positions[a * 3 + 1], az = positions[a * 3 + 2];
+		double bx = positions[b * 3], by = positions[b * 3 + 1], bz = positions[b * 3 + 2];
+		double cx = positions[c * 3], cy = positions[c * 3 + 1], cz = positions[c * 3 + 2];
+		double abx = bx - ax, aby = by - ay, abz = bz - az;
+		double acx = cx - ax, acy = cy - ay, acz = cz - az;
+		double apx = px - ax, apy = py - ay, apz = pz - az;
+		double d1 = abx * apx + aby * apy + abz * apz;
+		double d2 = acx * apx + acy * apy + acz * apz;
+		double qx, qy, qz;
+		if (d1 <= 0 && d2 <= 0) {
+			qx = ax; qy = ay; qz = az;
+		} else {
+			double bpx = px - bx, bpy = py - by, bpz = pz - bz;
+			double d3 = abx * bpx + aby * bpy + abz * bpz;
+			double d4 = acx * bpx + acy * bpy + acz * bpz;
+			double cpx = px - cx, cpy = py - cy, cpz = pz - cz;
+			double d5 = abx * cpx + aby * cpy + abz * cpz;
+			double d6 = acx * cpx + acy * cpy + acz * cpz;
+			double vc = d1 * d4 - d3 * d2;
+			double vb = d5 * d2 - d1 * d6;
+			double va = d3 * d6 - d5 * d4;
+			if (d3 >= 0 && d4 <= d3) {
+				qx = bx; qy = by; qz = bz;
+			} else if (vc <= 0 && d1 >= 0 && d3 <= 0) {
+				double v = d1 / (d1 - d3);
+				qx = ax + v * abx; qy = ay + v * aby; qz = az + v * abz;
+			} else if (d6 >= 0 && d5 <= d6) {
+				qx = cx; qy = cy; qz = cz;
+			} else if (vb <= 0 && d2 >= 0 && d6 <= 0) {
+				double w = d2 / (d2 - d6);
+				qx = ax + w * acx; qy = ay + w * acy; qz = az + w * acz;
+			} else if (va <= 0 && (d4 - d3) >= 0 && (d5 - d6) >= 0) {
+				double w = (d4 - d3) / ((d4 - d3) + (d5 - d6));
+				qx = bx + w * (cx - bx); qy = by + w * (cy - by); qz = bz + w * (cz - bz);
+			} else {
+				double denom = 1 / (va + vb + vc);
+				double v = vb * denom;
+				double w = vc * denom;
+				qx = ax + abx * v + acx * w; qy = ay + aby * v + acy * w; qz = az + abz * v + acz * w;
+			}
+		}
+		double dx = px - qx, dy = py - qy, dz = pz - qz;
+		return dx * dx + dy * dy + dz * dz;
+	}
+
+	/** Binary min-heap of candidate collapses held in parallel primitive arrays. */
+	private static class EdgeHeap {
+		private double[] costs = new double[64];
+		private int[] entries = new int[64 * 4];
+		private int size;
+
+		int size() {
+			return size;
+		}
+
+		double topCost() {
+			return costs[0];
+		}
+
+		int topFrom() {
+			return entries[0];
+		}
+
+		int topTo() {
+			return entries[1];
+		}
+
+		int topFromStamp() {
+			return entries[2];
+		}
+
+		int topToStamp() {
+			return entries[3];
+		}
+
+		void push(double cost, int from, int to, int fromStamp, int toStamp) {
+			if (size == costs.length) {
+				costs = Arrays.copyOf(costs, size * 2);
+				entries = Arrays.copyOf(entries, size * 8);
+			}
+			int i = size++;
+			while (i > 0) {
+				int parent = (i - 1) / 2;
+				if (costs[parent] <= cost) {
+					break;
+				}
+				move(parent, i);
+				i = parent;
+			}
+			costs[i] = cost;
+			entries[i * 4] = from;
+			entries[i * 4 + 1] = to;
+			entries[i * 4 + 2] = fromStamp;
+			entries[i * 4 + 3] = toStamp;
+		}
+
+		void pop() {
+			int last = --size;
+			if (last == 0) {
+				return;
+			}
+			double cost = costs[last];
+			int from = entries[last * 4], to = entries[last * 4 + 1];
+			int fromStamp = entries[last * 4 + 2], toStamp = entries[last * 4 + 3];
+			int i = 0;
+			while (true) {
+				int child = i * 2 + 1;
+				if (child >= last) {
+					break;
+				}
+				if (child + 1 < last && costs[child + 1] < costs[child]) {
+					child++;
+				}
+				if (costs[child] >= cost) {
+					break;
+				}
+				move(child, i);
+				i = child;
+			}
+			costs[i] = cost;
+			entries[i * 4] = from;
+			entries[i * 4 + 1] = to;
+			entries[i * 4 + 2] = fromStamp;
+			entries[i * 4 + 3] = toStamp;
+		}
+
+		private void move(int from, int to) {
+			costs[to] = costs[from];
+			System.arraycopy(entries, from * 4, entries, to * 4, 4);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+package example.mesh;
+
+/**
+ * Result of a closest-hit query: ray parameter, triangle number and the barycentric coordinates
+ * of the hit point with respect to the triangle's second and third vertices. Reused between
+ * queries to avoid allocation.
+ */
+public class RayHit {
+
+	public float t = Float.POSITIVE_INFINITY;
+	public int triangle = -1;
+	public float u;
+	public float v;
+
+	/** Traversal stack, kept with the hit so that a reused RayHit makes queries allocation free. */
+	int[] stack = new int[64];
+
+	public boolean isHit() {
+		return triangle >= 0;
+	}
+
+	public RayHit reset(float tMax) {
+		t = tMax;
+		triangle = -1;
+		u = 0;
+		v = 0;
+		return this;
+	}
+
+	public String toString() {
+		return isHit() ? String.format("RayHit[t=%f, triangle=%d, u=%f, v=%f]", t, triangle, u, v) : "RayHit[miss]";
+	}
+}
@@ -0,0 +1,435 @@
+package example.mesh;
+
+import org.joml.Matrix4fc;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Bounding volume hierarchy over the triangles of one mesh.
+ *
+ * Built top down with a binned surface area heuristic. Nodes live in flat arrays: six floats of
+ * bounds per node, and for each node either the index of its first child (children are stored
+ * as adjacent pairs) or, for a leaf, the range of entries in the reordered triangle list. Rays
+ * are given in model space; the Matrix4fc overloads take the inverse of the model matrix and
+ * transform the ray first, leaving the direction unnormalised so that t is the same in model
+ * and world space.
+ */
+public class TriangleBvh {
+
+	private static final int BINS = 16;
+	private static final int MAX_LEAF_SIZE = 8;
+	private static final float TRAVERSAL_COST = 1.0f;
+	private static final int PARALLEL_THRESHOLD = 1 << 14;
+	private static final int BATCH_CHUNK = 1024;
+
+	/** anyHit only needs the traversal stack, so it borrows a RayHit per thread. */
+	private static final ThreadLocal<RayHit> ANY_HIT_SCRATCH = ThreadLocal.withInitial(RayHit::new);
+
+	private final float[] positions;
+	private final int[] triangles;
+	private final int[] prims;
+	private final float[] nodeBounds;
+	private final int[] nodeFirst;
+	private final int[] nodeCount;
+	private final AtomicInteger nodesUsed = new AtomicInteger(1);
+
+	/** Per-triangle build inputs, released once the tree is built. */
+	private float[] centroids;
+	private float[] triBounds;
+
+	public TriangleBvh(float[] positions, int[] triangles) {
+		this(positions, triangles, false);
+	}
+
+	/** With parallel set, subtrees over a size threshold are built on the common ForkJoin pool. */
+	public TriangleBvh(float[] positions, int[] triangles, boolean parallel) {
+		this.positions = positions;
+		this.triangles = triangles;
+		int count = triangles.length / 3;
+		int maxNodes = Math.max(2 * count - 1, 1);
+		prims = new int[count];
+		nodeBounds = new float[maxNodes * 6];
+		nodeFirst = new int[maxNodes];
+		nodeCount = new int[maxNodes];
+		centroids = new float[count * 3];
+		triBounds = new float[count * 6];
+		for (int t = 0; t < count; ++t) {
+			prims[t] = t;
+			for (int axis = 0; axis < 3; ++axis) {
+				float a = positions[triangles[t * 3] * 3 + axis];
+				float b = positions[triangles[t * 3 + 1] * 3 + axis];
+				float c = positions[triangles[t * 3 + 2] * 3 + axis];
+				float min = Math.min(a, Math.min(b, c));
+				float max = Math.max(a, Math.max(b, c));
+				triBounds[t * 6 + axis] = min;
+				triBounds[t * 6 + 3 + axis] = max;
+				centroids[t * 3 + axis] = (min + max) * 0.5f;
+			}
+		}
+		BuildTask root = new BuildTask(0, 0, count, parallel);
+		if (parallel && count > PARALLEL_THRESHOLD) {
+			ForkJoinPool.commonPool().invoke(root);
+		} else {
+			root.compute();
+		}
+		centroids = null;
+		triBounds = null;
+	}
+
+	public int getNodeCount() {
+		return nodesUsed.get();
+	}
+
+	public int getTriangleCount() {
+		return prims.length;
+	}
+
+	private class BuildTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int node;
+		private final int start;
+		private final int end;
+		private final boolean parallel;
+
+		BuildTask(int node, int start, int end, boolean parallel) {
+			this.node = node;
+			this.start = start;
+			this.end = end;
+			this.parallel = parallel;
+		}
+
+		@Override
+		protected void compute() {
+			int mid = split(node, start, end);
+			if (mid < 0) {
+				return;
+			}
+			int left = nodeFirst[node];
+			BuildTask leftTask = new BuildTask(left, start, mid, parallel);
+			BuildTask rightTask = new BuildTask(left + 1, mid, end, parallel);
+			if (parallel && end - start > PARALLEL_THRESHOLD) {
+				invokeAll(leftTask, rightTask);
+			} else {
+				leftTask.compute();
+				rightTask.compute();
+			}
+		}
+	}
+
+	/**
+	 * Sets the bounds of node over prims[start, end) and either makes it a leaf, returning -1,
+	 * or partitions the range, allocates the two children and returns the split position.
+	 */
+	private int split(int node, int start, int end) {
+		float[] bounds = new float[6];
+		float[] centroidBounds = new float[6];
+		emptyBounds(bounds);
+		emptyBounds(centroidBounds);
+		for (int i = start; i < end; ++i) {
+			int t = prims[i];
+			growBounds(bounds, triBounds, t * 6, t * 6 + 3);
+			growBounds(centroidBounds, centroids, t * 3, t * 3);
+		}
+		System.arraycopy(bounds, 0, nodeBounds, node * 6, 6);
+		int count = end - start;
+		if (count <= 2) {
+			return makeLeaf(node, start, count);
+		}
+
+		int bestAxis = -1;
+		int bestBin = -1;
+		float bestCost = Float.POSITIVE_INFINITY;
+		int[] binCount = new int[BINS];
+		float[] binBounds = new float[BINS * 6];
+		float[] rightArea = new float[BINS];
+		int[] rightCount = new int[BINS];
+		float[] sweep = new float[6];
+		for (int axis = 0; axis < 3; ++axis) {
+			float min = centroidBounds[axis];
+			float extent = centroidBounds[3 + axis] - min;
+			if (extent <= 0) {
+				continue;
+			}
+			float scale = BINS / extent;
+			Arrays.fill(binCount, 0);
+			for (int b = 0; b < BINS; ++b) {
+				emptyBounds(binBounds, b * 6);
+			}
+			for (int i = start; i < end; ++i) {
+				int t = prims[i];
+				int b = Math.min(BINS - 1, (int) ((centroids[t * 3 + axis] - min) * scale));
+				binCount[b]++;
+				growBounds(binBounds, b * 6, triBounds, t * 6, t * 6 + 3);
+			}
+			emptyBounds(sweep);
+			int n = 0;
+			for (int b = BINS - 1; b > 0; --b) {
+				n += binCount[b];
+				growBounds(sweep, 0, binBounds, b * 6, b * 6 + 3);
+				rightCount[b] = n;
+				rightArea[b] = area(sweep, 0);
+			}
+			emptyBounds(sweep);
+			n = 0;
+			for (int b = 0; b < BINS - 1; ++b) {
+				n += binCount[b];
+				growBounds(sweep, 0, binBounds, b * 6, b * 6 + 3);
+				if (n == 0 || rightCount[b + 1] == 0) {
+					continue;
+				}
+				float cost = area(sweep, 0) * n + rightArea[b + 1] * rightCount[b + 1];
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestBin = b;
+				}
+			}
+		}
+
+		float leafCost = count;
+		float splitCost = TRAVERSAL_COST + bestCost / area(bounds, 0);
+		int mid;
+		if (bestAxis < 0 || splitCost >= leafCost) {
+			if (count <= MAX_LEAF_SIZE) {
+				return makeLeaf(node, start, count);
+			}
+			mid = bestAxis < 0 ? (start + end) / 2 : partition(start, end, bestAxis, bestBin, centroidBounds);
+		} else {
+			mid = partition(start, end, bestAxis, bestBin, centroidBounds);
+		}
+		nodeFirst[node] = nodesUsed.getAndAdd(2);
+		nodeCount[node] = 0;
+		return mid;
+	}
+
+	private int partition(int start, int end, int axis, int bin, float[] centroidBounds) {
+		float min = centroidBounds[axis];
+		float scale = BINS / (centroidBounds[3 + axis] - min);
+		int i = start;
+		int j = end - 1;
+		while (i <= j) {
+			int t = prims[i];
+			int b = Math.min(BINS - 1, (int) ((centroids[t * 3 + axis] - min) * scale));
+			if (b <= bin) {
+				++i;
+			} else {
+				prims[i] = prims[j];
+				prims[j--] = t;
+			}
+		}
+		return i;
+	}
+
+	private int makeLeaf(int node, int start, int count) {
+		nodeFirst[node] = start;
+		nodeCount[node] = count;
+		return -1;
+	}
+
+	private static void emptyBounds(float[] b) {
+		emptyBounds(b, 0);
+	}
+
+	private static void emptyBounds(float[] b, int offset) {
+		for (int i = 0; i < 3; ++i) {
+			b[offset + i] = Float.POSITIVE_INFINITY;
+			b[offset + 3 + i] = Float.NEGATIVE_INFINITY;
+		}
+	}
+
+	private static void growBounds(float[] b, float[] src, int minOffset, int maxOffset) {
+		growBounds(b, 0, src, minOffset, maxOffset);
+	}
+
+	private static void growBounds(float[] b, int offset, float[] src, int minOffset, int maxOffset) {
+		for (int i = 0; i < 3; ++i) {
+			b[offset + i] = Math.min(b[offset + i], src[minOffset + i]);
+			b[offset + 3 + i] = Math.max(b[offset + 3 + i], src[maxOffset + i]);
+		}
+	}
+
+	private static float area(float[] b, int offset) {
+		float dx = b[offset + 3] - b[offset];
+		float dy = b[offset + 4] - b[offset + 1];
+		float dz = b[offset + 5] - b[offset + 2];
+		if (dx < 0) {
+			return 0;
+		}
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	/** Entry distance of the ray into a node's box, or infinity if it misses within tMax. */
+	private float enter(int node, float ox, float oy, float oz, float ix, float iy, float iz, float tMax) {
+		int b = node * 6;
+		float tx1 = (nodeBounds[b] - ox) * ix, tx2 = (nodeBounds[b + 3] - ox) * ix;
+		float tmin = Math.min(tx1, tx2), tmax = Math.max(tx1, tx2);
+		float ty1 = (nodeBounds[b + 1] - oy) * iy, ty2 = (nodeBounds[b + 4] - oy) * iy;
+		tmin = Math.max(tmin, Math.min(ty1, ty2));
+		tmax = Math.min(tmax, Math.max(ty1, ty2));
+		float tz1 = (nodeBounds[b + 2] - oz) * iz, tz2 = (nodeBounds[b + 5] - oz) * iz;
+		tmin = Math.max(tmin, Math.min(tz1, tz2));
+		tmax = Math.min(tmax, Math.max(tz1, tz2));
+		if (tmax >= Math.max(tmin, 0) && tmin < tMax) {
+			return Math.max(tmin, 0);
+		}
+		return Float.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Moller-Trumbore intersection; writes the hit into hit if it is nearer than hit.t and
+	 * returns whether it did.
+	 */
+	private boolean intersect(int t, float ox, float oy, float oz, float dx, float dy, float dz, RayHit hit) {
+		int a = triangles[t * 3] * 3, b = triangles[t * 3 + 1] * 3, c = triangles[t * 3 + 2] * 3;
+		float e1x = positions[b] - positions[a], e1y = positions[b + 1] - positions[a + 1], e1z = positions[b + 2] - positions[a + 2];
+		float e2x = positions[c] - positions[a], e2y = positions[c + 1] - positions[a + 1], e2z = positions[c + 2] - positions[a + 2];
+		float px = dy * e2z - dz * e2y, py = dz * e2x - dx * e2z, pz = dx * e2y - dy * e2x;
+		float det = e1x * px + e1y * py + e1z * pz;
+		if (det == 0) {
+			return false;
+		}
+		float inv = 1 / det;
+		float sx = ox - positions[a], sy = oy - positions[a + 1], sz = oz - positions[a + 2];
+		float u = (sx * px + sy * py + sz * pz) * inv;
+		if (u < 0 || u > 1) {
+			return false;
+		}
+		float qx = sy * e1z - sz * e1y, qy = sz * e1x - sx * e1z, qz = sx * e1y - sy * e1x;
+		float v = (dx * qx + dy * qy + dz * qz) * inv;
+		if (v < 0 || u + v > 1) {
+			return false;
+		}
+		float d = (e2x * qx + e2y * qy + e2z * qz) * inv;
+		if (d < 0 || d >= hit.t) {
+			return false;
+		}
+		hit.t = d;
+		hit.triangle = t;
+		hit.u = u;
+		hit.v = v;
+		return true;
+	}
+
+	/**
+	 * Nearest hit with t in [0, hit.t); call hit.reset(tMax) first. With anyHit set the search
+	 * stops at the first hit found.
+	 */
+	private boolean traverse(float ox, float oy, float oz, float dx, float dy, float dz, RayHit hit, boolean anyHit) {
+		if (prims.length == 0) {
+			return false;
+		}
+		float ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+		int[] stack = hit.stack;
+		int top = 0;
+		boolean found = false;
+		if (enter(0, ox, oy, oz, ix, iy, iz, hit.t) == Float.POSITIVE_INFINITY) {
+			return false;
+		}
+		int node = 0;
+		while (true) {
+			if (nodeCount[node] > 0) {
+				int first = nodeFirst[node];
+				for (int i = first; i < first + nodeCount[node]; ++i) {
+					if (intersect(prims[i], ox, oy, oz, dx, dy, dz, hit)) {
+						found = true;
+						if (anyHit) {
+							return true;
+						}
+					}
+				}
+			} else {
+				int left = nodeFirst[node];
+				float tl = enter(left, ox, oy, oz, ix, iy, iz, hit.t);
+				float tr = enter(left + 1, ox, oy, oz, ix, iy, iz, hit.t);
+				if (tl != Float.POSITIVE_INFINITY && tr != Float.POSITIVE_INFINITY) {
+					if (top == stack.length) {
+						stack = hit.stack = Arrays.copyOf(stack, top * 2);
+					}
+					if (tl <= tr) {
+						stack[top++] = left + 1;
+						node = left;
+					} else {
+						stack[top++] = left;
+						node = left + 1;
+					}
+					continue;
+				} else if (tl != Float.POSITIVE_INFINITY) {
+					node = left;
+					continue;
+				} else if (tr != Float.POSITIVE_INFINITY) {
+					node = left + 1;
+					continue;
+				}
+			}
+			boolean next = false;
+			while (top > 0) {
+				node = stack[--top];
+				if (enter(node, ox, oy, oz, ix, iy, iz, hit.t) != Float.POSITIVE_INFINITY) {
+					next = true;
+					break;
+				}
+			}
+			if (!next) {
+				return found;
+			}
+		}
+	}
+
+	public boolean closestHit(float ox, float oy, float oz, float dx, float dy, float dz, RayHit hit) {
+		return traverse(ox, oy, oz, dx, dy, dz, hit, false);
+	}
+
+	public boolean anyHit(float ox, float oy, float oz, float dx, float dy, float dz, float tMax) {
+		return traverse(ox, oy, oz, dx, dy, dz, ANY_HIT_SCRATCH.get().reset(tMax), true);
+	}
+
+	/** Closest hit of a world-space ray against the mesh placed by a model matrix. */
+	public boolean closestHit(Matrix4fc inverseModel, float ox, float oy, float oz, float dx, float dy, float dz, RayHit hit) {
+		Matrix4fc m = inverseModel;
+		return closestHit(
+				m.m00() * ox + m.m10() * oy + m.m20() * oz + m.m30(),
+				m.m01() * ox + m.m11() * oy + m.m21() * oz + m.m31(),
+				m.m02() * ox + m.m12() * oy + m.m22() * oz + m.m32(),
+				m.m00() * dx + m.m10() * dy + m.m20() * dz,
+				m.m01() * dx + m.m11() * dy + m.m21() * dz,
+				m.m02() * dx + m.m12() * dy + m.m22() * dz,
+				hit);
+	}
+
+	public boolean anyHit(Matrix4fc inverseModel, float ox, float oy, float oz, float dx, float dy, float dz, float tMax) {
+		Matrix4fc m = inverseModel;
+		return anyHit(
+				m.m00() * ox + m.m10() * oy + m.m20() * oz + m.m30(),
+				m.m01() * ox + m.m11() * oy + m.m21() * oz + m.m31(),
+				m.m02() * ox + m.m12() * oy + m.m22() * oz + m.m32(),
+				m.m00() * dx + m.m10() * dy + m.m20() * dz,
+				m.m01() * dx + m.m11() * dy + m.m21() * dz,
+				m.m02() * dx + m.m12() * dy + m.m22() * dz,
+				tMax);
+	}
+
+	/**
+	 * Closest hits for a batch of world-space rays packed as origin and direction, six floats
+	 * per ray, run in parallel chunks. Misses get t = infinity and triangle = -1.
+	 */
+	public void closestHits(final Matrix4fc inverseModel, final float[] rays, final float[] tOut, final int[] triangleOut) {
+		final int count = rays.length / 6;
+		int chunks = (count + BATCH_CHUNK - 1) / BATCH_CHUNK;
+		IntStream.range(0, chunks).parallel().forEach(chunk -> {
+			RayHit hit = new RayHit();
+			int end = Math.min(count, (chunk + 1) * BATCH_CHUNK);
+			for (int r = chunk * BATCH_CHUNK; r < end; ++r) {
+				int o = r * 6;
+				hit.reset(Float.POSITIVE_INFINITY);
+				closestHit(inverseModel, rays[o], rays[o + 1], rays[o + 2], rays[o + 3], rays[o + 4], rays[o + 5], hit);
+				tOut[r] = hit.t;
+				triangleOut[r] = hit.triangle;
+			}
+		});
+	}
+}
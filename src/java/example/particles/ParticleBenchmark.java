@@ -0,0 +1,48 @@
+package example.particles;
+
+/**
+ * Runs a fountain of about a million live particles at 60 updates per second of simulated time
+ * and reports milliseconds per frame for emission plus update (integrate, compact and vertex
+ * write), single threaded and on the ForkJoin pool.
+ *
+ * Run with: lein run -m example.particles.ParticleBenchmark [particles] [frames]
+ */
+public class ParticleBenchmark {
+
+	public static void main(String[] args) {
+		int particles = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int frames = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+		float dt = 1 / 60f;
+		float lifeMax = 2;
+		int perFrame = (int) (particles * dt / (lifeMax * 0.75f));
+		ParticleEmitter emitter = new ParticleEmitter()
+				.direction(0, 1, 0, 0.4f)
+				.speed(4, 8)
+				.life(lifeMax / 2, lifeMax)
+				.color(ParticleSystem.rgba(255, 160, 40, 255), 30);
+
+		for (boolean parallel : new boolean[] { false, true, false, true }) {
+			ParticleSystem system = new ParticleSystem(particles + perFrame);
+			system.parallel = parallel;
+			system.drag = 0.1f;
+			for (int i = 0; i < 180; ++i) {
+				system.emit(emitter, perFrame);
+				system.update(dt);
+			}
+			long worst = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < frames; ++i) {
+				long frameStart = System.nanoTime();
+				system.emit(emitter, perFrame);
+				system.update(dt);
+				worst = Math.max(worst, System.nanoTime() - frameStart);
+			}
+			double ms = (System.nanoTime() - start) / 1e6 / frames;
+			System.out.printf("%s: %d live, %d emitted per frame, %.2f ms/frame (worst %.2f), %.1f M particles/s%n",
+					parallel ? "parallel" : "sequential", system.getCount(), perFrame, ms, worst / 1e6,
+					system.getCount() / ms / 1e3);
+			system.release();
+		}
+		System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+	}
+}
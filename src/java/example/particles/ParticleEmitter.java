@@ -0,0 +1,52 @@
+package example.particles;
+
+/**
+ * Where and how new particles start: a point source firing into a cone around a direction, with
+ * speed and lifetime drawn uniformly from their ranges. Colours are packed as by
+ * ParticleSystem.rgba.
+ */
+public class ParticleEmitter {
+
+	public float x, y, z;
+	public float directionX = 0, directionY = 1, directionZ = 0;
+	/** Random offset added to the unit direction before normalising; 0 is a beam, 1 a wide cone. */
+	public float spread = 0.3f;
+	public float speedMin = 1, speedMax = 2;
+	public float lifeMin = 1, lifeMax = 2;
+	public int color = ParticleSystem.rgba(255, 255, 255, 255);
+	/** Per channel random variation of color, 0 to 255. */
+	public int colorJitter = 0;
+
+	public ParticleEmitter at(float x, float y, float z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+
+	public ParticleEmitter direction(float x, float y, float z, float spread) {
+		this.directionX = x;
+		this.directionY = y;
+		this.directionZ = z;
+		this.spread = spread;
+		return this;
+	}
+
+	public ParticleEmitter speed(float min, float max) {
+		this.speedMin = min;
+		this.speedMax = max;
+		return this;
+	}
+
+	public ParticleEmitter life(float min, float max) {
+		this.lifeMin = min;
+		this.lifeMax = max;
+		return this;
+	}
+
+	public ParticleEmitter color(int color, int jitter) {
+		this.color = color;
+		this.colorJitter = jitter;
+		return this;
+	}
+}
@@ -0,0 +1,284 @@
+package example.particles;
+
+import example.buffers.DirectBufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Particles kept as structure of arrays: position, velocity, age, lifetime and colour each in
+ * their own primitive array, so a frame touches no objects and runs in fixed size chunks on
+ * the common ForkJoin pool.
+ *
+ * update integrates and counts survivors per chunk, then a second pass scatters the survivors
+ * into the spare set of arrays at offsets from a prefix sum over the chunk counts and writes
+ * each one's vertex on the way. Dead particles are dropped without a sequential pass and the
+ * vertex buffer always holds exactly the live particles, in order, ready for one GL_POINTS draw.
+ *
+ * Vertices are VERTEX_BYTES apart: position as three floats, then colour as four unsigned
+ * bytes with alpha faded over the particle's life. The vertex buffer comes from a
+ * DirectBufferPool; call release once the system is discarded. Not thread safe; call emit and
+ * update from one thread.
+ */
+public class ParticleSystem {
+
+	public static final int VERTEX_BYTES = 16;
+	static final int CHUNK = 1 << 14;
+
+	public final int capacity;
+	int count;
+	int vertexCount;
+	long frame;
+	/** Counts emit calls so that several emits in one frame draw different particles. */
+	long emits;
+	final long seed;
+
+	float[] px, py, pz, vx, vy, vz, age, life;
+	int[] color;
+	float[] spx, spy, spz, svx, svy, svz, sage, slife;
+	int[] scolor;
+	final int[] chunkAlive;
+
+	final DirectBufferPool pool;
+	final ByteBuffer vertices;
+
+	public float gravityX = 0, gravityY = -9.81f, gravityZ = 0;
+	/** Fraction of velocity lost per second. */
+	public float drag = 0;
+	public boolean parallel = true;
+
+	public ParticleSystem(int capacity) {
+		this(capacity, DirectBufferPool.DEFAULT, 42);
+	}
+
+	public ParticleSystem(int capacity, DirectBufferPool pool, long seed) {
+		this.capacity = capacity;
+		this.pool = pool;
+		this.seed = seed;
+		px = new float[capacity];
+		py = new float[capacity];
+		pz = new float[capacity];
+		vx = new float[capacity];
+		vy = new float[capacity];
+		vz = new float[capacity];
+		age = new float[capacity];
+		life = new float[capacity];
+		color = new int[capacity];
+		spx = new float[capacity];
+		spy = new float[capacity];
+		spz = new float[capacity];
+		svx = new float[capacity];
+		svy = new float[capacity];
+		svz = new float[capacity];
+		sage = new float[capacity];
+		slife = new float[capacity];
+		scolor = new int[capacity];
+		chunkAlive = new int[(capacity + CHUNK - 1) / CHUNK + 1];
+		vertices = pool.acquire(capacity * VERTEX_BYTES);
+	}
+
+	/** Packs a colour with red in the lowest byte, the order GL reads GL_UNSIGNED_BYTE vertices in. */
+	public static int rgba(int r, int g, int b, int a) {
+		return (r & 0xFF) | (g & 0xFF) << 8 | (b & 0xFF) << 16 | (a & 0xFF) << 24;
+	}
+
+	public int getCount() {
+		return count;
+	}
+
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	/** Live particles' vertices from position 0, as written by the last update. */
+	public ByteBuffer getVertices() {
+		vertices.clear();
+		vertices.limit(vertexCount * VERTEX_BYTES);
+		return vertices;
+	}
+
+	public float getX(int i) {
+		return px[i];
+	}
+
+	public float getY(int i) {
+		return py[i];
+	}
+
+	public float getZ(int i) {
+		return pz[i];
+	}
+
+	public float getAge(int i) {
+		return age[i];
+	}
+
+	public int getColor(int i) {
+		return color[i];
+	}
+
+	/** Adds up to n particles, fewer if the system is full. Returns the number added. */
+	public int emit(final ParticleEmitter emitter, int n) {
+		n = Math.min(n, capacity - count);
+		if (n <= 0) {
+			return 0;
+		}
+		final int from = count;
+		final int to = count + n;
+		final long emitSeed = (seed * 0x9E3779B97F4A7C15L + frame) * 0xD1B54A32D192ED03L + emits++;
+		int chunks = (n + CHUNK - 1) / CHUNK;
+		if (parallel && chunks > 1) {
+			IntStream.range(0, chunks).parallel().forEach(c -> emitChunk(emitter, emitSeed, from, to, c));
+		} else {
+			for (int c = 0; c < chunks; ++c) {
+				emitChunk(emitter, emitSeed, from, to, c);
+			}
+		}
+		count = to;
+		return n;
+	}
+
+	void emitChunk(ParticleEmitter e, long emitSeed, int from, int to, int chunk) {
+		SplittableRandom random = new SplittableRandom(emitSeed + chunk * 0xBF58476D1CE4E5B9L);
+		int start = from + chunk * CHUNK;
+		int end = Math.min(to, start + CHUNK);
+		for (int i = start; i < end; ++i) {
+			float dx = e.directionX + e.spread * (float) (random.nextDouble() * 2 - 1);
+			float dy = e.directionY + e.spread * (float) (random.nextDouble() * 2 - 1);
+			float dz = e.directionZ + e.spread * (float) (random.nextDouble() * 2 - 1);
+			float length = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+			float speed = e.speedMin + (e.speedMax - e.speedMin) * (float) random.nextDouble();
+			float scale = length > 0 ? speed / length : 0;
+			px[i] = e.x;
+			py[i] = e.y;
+			pz[i] = e.z;
+			vx[i] = dx * scale;
+			vy[i] = dy * scale;
+			vz[i] = dz * scale;
+			age[i] = 0;
+			life[i] = e.lifeMin + (e.lifeMax - e.lifeMin) * (float) random.nextDouble();
+			int c = e.color;
+			if (e.colorJitter > 0) {
+				int r = jitter(c & 0xFF, e.colorJitter, random);
+				int g = jitter((c >>> 8) & 0xFF, e.colorJitter, random);
+				int b = jitter((c >>> 16) & 0xFF, e.colorJitter, random);
+				c = rgba(r, g, b, c >>> 24);
+			}
+			color[i] = c;
+		}
+	}
+
+	static int jitter(int channel, int amount, SplittableRandom random) {
+		return Math.max(0, Math.min(255, channel + random.nextInt(2 * amount + 1) - amount));
+	}
+
+	/** Advances every particle by dt seconds, drops the expired ones and rewrites the vertices. */
+	public void update(final float dt) {
+		final int n = count;
+		int chunks = (n + CHUNK - 1) / CHUNK;
+		if (parallel && chunks > 1) {
+			IntStream.range(0, chunks).parallel().forEach(c -> simulateChunk(dt, n, c));
+		} else {
+			for (int c = 0; c < chunks; ++c) {
+				simulateChunk(dt, n, c);
+			}
+		}
+		int alive = 0;
+		for (int c = 0; c < chunks; ++c) {
+			int chunkCount = chunkAlive[c];
+			chunkAlive[c] = alive;
+			alive += chunkCount;
+		}
+		if (parallel && chunks > 1) {
+			IntStream.range(0, chunks).parallel().forEach(c -> compactChunk(n, c));
+		} else {
+			for (int c = 0; c < chunks; ++c) {
+				compactChunk(n, c);
+			}
+		}
+		swap();
+		count = alive;
+		vertexCount = alive;
+		++frame;
+	}
+
+	void simulateChunk(float dt, int n, int chunk) {
+		int start = chunk * CHUNK;
+		int end = Math.min(n, start + CHUNK);
+		float damping = Math.max(0, 1 - drag * dt);
+		float gx = gravityX * dt, gy = gravityY * dt, gz = gravityZ * dt;
+		int alive = 0;
+		for (int i = start; i < end; ++i) {
+			float a = age[i] + dt;
+			age[i] = a;
+			if (a < life[i]) {
+				float x = (vx[i] + gx) * damping;
+				float y = (vy[i] + gy) * damping;
+				float z = (vz[i] + gz) * damping;
+				vx[i] = x;
+				vy[i] = y;
+				vz[i] = z;
+				px[i] += x * dt;
+				py[i] += y * dt;
+				pz[i] += z * dt;
+				++alive;
+			}
+		}
+		chunkAlive[chunk] = alive;
+	}
+
+	void compactChunk(int n, int chunk) {
+		int start = chunk * CHUNK;
+		int end = Math.min(n, start + CHUNK);
+		int j = chunkAlive[chunk];
+		ByteBuffer out = vertices;
+		for (int i = start; i < end; ++i) {
+			float a = age[i];
+			float l = life[i];
+			if (a < l) {
+				float x = px[i], y = py[i], z = pz[i];
+				int c = color[i];
+				spx[j] = x;
+				spy[j] = y;
+				spz[j] = z;
+				svx[j] = vx[i];
+				svy[j] = vy[i];
+				svz[j] = vz[i];
+				sage[j] = a;
+				slife[j] = l;
+				scolor[j] = c;
+				int offset = j * VERTEX_BYTES;
+				int alpha = (int) ((c >>> 24) * (1 - a / l));
+				out.putFloat(offset, x);
+				out.putFloat(offset + 4, y);
+				out.putFloat(offset + 8, z);
+				out.putInt(offset + 12, (c & 0xFFFFFF) | alpha << 24);
+				++j;
+			}
+		}
+	}
+
+	void swap() {
+		float[] t;
+		t = px; px = spx; spx = t;
+		t = py; py = spy; spy = t;
+		t = pz; pz = spz; spz = t;
+		t = vx; vx = svx; svx = t;
+		t = vy; vy = svy; svy = t;
+		t = vz; vz = svz; svz = t;
+		t = age; age = sage; sage = t;
+		t = life; life = slife; slife = t;
+		int[] u = color; color = scolor; scolor = u;
+	}
+
+	public void clear() {
+		count = 0;
+		vertexCount = 0;
+	}
+
+	/** Returns the vertex buffer to its pool; the system must not be used afterwards. */
+	public void release() {
+		pool.release(vertices);
+	}
+}
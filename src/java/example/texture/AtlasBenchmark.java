@@ -0,0 +1,56 @@
+package example.texture;
+
+import java.util.Random;
+
+/**
+ * Packs thousands of random sprites into atlas pages and reports packing time, pages and
+ * occupancy, then times mip chain generation for a large texture single threaded and in
+ * parallel.
+ *
+ * Run with: lein run -m example.texture.AtlasBenchmark [sprites] [page-size] [texture-size]
+ */
+public class AtlasBenchmark {
+
+	public static void main(String[] args) {
+		int sprites = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+		int textureSize = args.length > 2 ? Integer.parseInt(args[2]) : 4096;
+		int padding = 2;
+
+		Random random = new Random(42);
+		int[] widths = new int[sprites];
+		int[] heights = new int[sprites];
+		byte[][] images = new byte[sprites][];
+		for (int i = 0; i < sprites; ++i) {
+			widths[i] = 8 + random.nextInt(57);
+			heights[i] = 8 + random.nextInt(57);
+			images[i] = new byte[widths[i] * heights[i] * 4];
+			random.nextBytes(images[i]);
+		}
+
+		for (int round = 0; round < 5; ++round) {
+			long start = System.nanoTime();
+			TextureAtlas atlas = TextureAtlas.pack(pageSize, pageSize, padding, widths, heights);
+			long packed = System.nanoTime();
+			atlas.blitAll(images);
+			long blitted = System.nanoTime();
+			System.out.printf("pack %d sprites: %.1f ms, blit %.1f ms, %d pages, occupancy %.1f%%%n",
+					sprites, (packed - start) / 1e6, (blitted - packed) / 1e6, atlas.getPageCount(),
+					100 * atlas.getOccupancy());
+		}
+
+		byte[] texture = new byte[textureSize * textureSize * 4];
+		random.nextBytes(texture);
+		double megapixels = textureSize * (double) textureSize * 4 / 3 / 1e6;
+		for (int round = 0; round < 3; ++round) {
+			for (boolean parallel : new boolean[] { false, true }) {
+				long start = System.nanoTime();
+				MipChain chain = MipChain.build(texture, textureSize, textureSize, 0, parallel);
+				double seconds = (System.nanoTime() - start) / 1e9;
+				System.out.printf("mip chain %dx%d %s: %d levels, %.1f ms, %.1f MP/s%n", textureSize, textureSize,
+						parallel ? "parallel" : "sequential", chain.getLevelCount(), seconds * 1e3, megapixels / seconds);
+			}
+		}
+		System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+	}
+}
@@ -0,0 +1,134 @@
+package example.texture;
+
+import java.util.Arrays;
+
+/**
+ * Skyline bottom-left rectangle packer for one atlas page. The skyline is the top edge of the
+ * packed area kept as a list of horizontal segments; each rectangle goes where its top edge
+ * ends up lowest, breaking ties towards the narrowest segment to limit wasted space.
+ */
+public class AtlasPacker {
+
+	public final int width;
+	public final int height;
+
+	int[] segmentX = new int[16];
+	int[] segmentY = new int[16];
+	int[] segmentWidth = new int[16];
+	int segments;
+
+	long usedArea;
+	int usedHeight;
+
+	public AtlasPacker(int width, int height) {
+		this.width = width;
+		this.height = height;
+		segmentWidth[0] = width;
+		segments = 1;
+	}
+
+	/** Places a w by h rectangle, writing its corner to position[0..1]. False if it does not fit. */
+	public boolean insert(int w, int h, int[] position) {
+		int best = -1;
+		int bestTop = Integer.MAX_VALUE;
+		int bestWidth = Integer.MAX_VALUE;
+		for (int i = 0; i < segments; ++i) {
+			int y = fit(i, w, h);
+			if (y >= 0) {
+				int top = y + h;
+				if (top < bestTop || (top == bestTop && segmentWidth[i] < bestWidth)) {
+					best = i;
+					bestTop = top;
+					bestWidth = segmentWidth[i];
+				}
+			}
+		}
+		if (best < 0) {
+			return false;
+		}
+		int x = segmentX[best];
+		int y = bestTop - h;
+		addSegment(best, x, bestTop, w);
+		usedArea += (long) w * h;
+		usedHeight = Math.max(usedHeight, bestTop);
+		position[0] = x;
+		position[1] = y;
+		return true;
+	}
+
+	/** Lowest y at which a rectangle starting at segment i rests on the skyline, or -1. */
+	int fit(int i, int w, int h) {
+		int x = segmentX[i];
+		if (x + w > width) {
+			return -1;
+		}
+		int remaining = w;
+		int y = 0;
+		while (remaining > 0) {
+			y = Math.max(y, segmentY[i]);
+			if (y + h > height) {
+				return -1;
+			}
+			remaining -= segmentWidth[i];
+			++i;
+		}
+		return y;
+	}
+
+	/** Inserts the new top segment at index and trims or removes the segments it covers. */
+	void addSegment(int index, int x, int y, int w) {
+		if (segments == segmentX.length) {
+			segmentX = Arrays.copyOf(segmentX, segments * 2);
+			segmentY = Arrays.copyOf(segmentY, segments * 2);
+			segmentWidth = Arrays.copyOf(segmentWidth, segments * 2);
+		}
+		System.arraycopy(segmentX, index, segmentX, index + 1, segments - index);
+		System.arraycopy(segmentY, index, segmentY, index + 1, segments - index);
+		System.arraycopy(segmentWidth, index, segmentWidth, index + 1, segments - index);
+		segmentX[index] = x;
+		segmentY[index] = y;
+		segmentWidth[index] = w;
+		++segments;
+
+		int end = x + w;
+		int i = index + 1;
+		while (i < segments && segmentX[i] < end) {
+			int shrink = end - segmentX[i];
+			if (shrink < segmentWidth[i]) {
+				segmentX[i] += shrink;
+				segmentWidth[i] -= shrink;
+				break;
+			}
+			remove(i);
+		}
+		for (i = 0; i + 1 < segments; ) {
+			if (segmentY[i] == segmentY[i + 1]) {
+				segmentWidth[i] += segmentWidth[i + 1];
+				remove(i + 1);
+			} else {
+				++i;
+			}
+		}
+	}
+
+	void remove(int i) {
+		System.arraycopy(segmentX, i + 1, segmentX, i, segments - i - 1);
+		System.arraycopy(segmentY, i + 1, segmentY, i, segments - i - 1);
+		System.arraycopy(segmentWidth, i + 1, segmentWidth, i, segments - i - 1);
+		--segments;
+	}
+
+	public long getUsedArea() {
+		return usedArea;
+	}
+
+	/** Height of the tallest packed column; the rest of the page is free. */
+	public int getUsedHeight() {
+		return usedHeight;
+	}
+
+	/** Packed area over the page area up to the used height. */
+	public float getOccupancy() {
+		return usedHeight == 0 ? 0 : (float) usedArea / ((long) width * usedHeight);
+	}
+}
@@ -0,0 +1,95 @@
+package example.texture;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Encodes an image to BC1 and BC3 single threaded and in parallel, reporting megapixels per
+ * second and the PSNR of the decoded result. Without an image argument a synthetic texture of
+ * smooth gradients, hard edges, noise and an alpha ramp is used.
+ *
+ * Run with: lein run -m example.texture.BlockCompressionBenchmark [size | image-file]
+ */
+public class BlockCompressionBenchmark {
+
+	static int width;
+	static int height;
+
+	static byte[] synthetic(int size) {
+		width = size;
+		height = size;
+		Random random = new Random(42);
+		byte[] rgba = new byte[size * size * 4];
+		for (int y = 0; y < size; ++y) {
+			for (int x = 0; x < size; ++x) {
+				int i = (y * size + x) * 4;
+				double u = (double) x / size, v = (double) y / size;
+				boolean stripe = ((x / 37) + (y / 53)) % 5 == 0;
+				rgba[i] = (byte) (stripe ? 230 : 128 + 100 * Math.sin(9 * u + 4 * v));
+				rgba[i + 1] = (byte) (stripe ? 40 : 128 + 90 * Math.cos(7 * v - 3 * u));
+				rgba[i + 2] = (byte) Math.max(0, Math.min(255, 255 * u * v + random.nextInt(24) - 12));
+				rgba[i + 3] = (byte) (255 * (0.5 + 0.5 * Math.sin(11 * u) * Math.sin(13 * v)));
+			}
+		}
+		return rgba;
+	}
+
+	static byte[] load(String path) throws IOException {
+		BufferedImage image = ImageIO.read(new File(path));
+		width = image.getWidth();
+		height = image.getHeight();
+		byte[] rgba = new byte[width * height * 4];
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				int argb = image.getRGB(x, y);
+				int i = (y * width + x) * 4;
+				rgba[i] = (byte) (argb >>> 16);
+				rgba[i + 1] = (byte) (argb >>> 8);
+				rgba[i + 2] = (byte) argb;
+				rgba[i + 3] = (byte) (argb >>> 24);
+			}
+		}
+		return rgba;
+	}
+
+	public static void main(String[] args) throws IOException {
+		byte[] rgba;
+		if (args.length > 0 && !args[0].matches("\\d+")) {
+			rgba = load(args[0]);
+		} else {
+			rgba = synthetic(args.length > 0 ? Integer.parseInt(args[0]) : 2048);
+		}
+		double megapixels = width * (double) height / 1e6;
+		System.out.printf("%dx%d, %d bytes raw%n", width, height, rgba.length);
+		for (BlockCompressor.Format format : BlockCompressor.Format.values()) {
+			for (int round = 0; round < 3; ++round) {
+				for (boolean parallel : new boolean[] { false, true }) {
+					long start = System.nanoTime();
+					byte[] blocks = BlockCompressor.compress(rgba, width, height, format, parallel);
+					double seconds = (System.nanoTime() - start) / 1e9;
+					System.out.printf("%s %s: %.1f ms, %.1f MP/s, %d bytes%n", format,
+							parallel ? "parallel" : "sequential", seconds * 1e3, megapixels / seconds, blocks.length);
+				}
+			}
+			byte[] blocks = BlockCompressor.compress(rgba, width, height, format, true);
+			long start = System.nanoTime();
+			byte[] decoded = BlockCompressor.decompress(blocks, width, height, format);
+			double seconds = (System.nanoTime() - start) / 1e9;
+			System.out.printf("%s decode %.1f MP/s, PSNR rgb %.2f dB, alpha %.2f dB%n", format, megapixels / seconds,
+					BlockCompressor.psnr(rgba, decoded, 3), alphaPsnr(rgba, decoded));
+		}
+		System.out.println("cores: " + Runtime.getRuntime().availableProcessors());
+	}
+
+	static double alphaPsnr(byte[] a, byte[] b) {
+		long sum = 0;
+		for (int i = 3; i < a.length; i += 4) {
+			int d = (a[i] & 0xFF) - (b[i] & 0xFF);
+			sum += d * d;
+		}
+		return sum == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255.0 * 255.0 / ((double) sum / (a.length / 4)));
+	}
+}
@@ -0,0 +1,364 @@
+package example.texture;
+
+import java.util.stream.IntStream;
+
+/**
+ * BC1 (DXT1) and BC3 (DXT5) encoder and decoder for RGBA8 images. Colour endpoints are taken
+ * along the principal axis of each 4x4 block and then refined once by least squares; BC3 alpha
+ * uses the eight-value mode between the block's alpha extremes. Partial blocks at the right and
+ * bottom edges repeat the last texel. Block rows are encoded in parallel on the common
+ * ForkJoin pool.
+ */
+public class BlockCompressor {
+
+	public enum Format {
+		/** Opaque colour, 8 bytes per block; alpha is dropped. */
+		BC1(8, 0x83F0),
+		/** Colour plus interpolated alpha, 16 bytes per block. */
+		BC3(16, 0x83F3);
+
+		public final int blockBytes;
+		/** The EXT_texture_compression_s3tc internal format, GL_COMPRESSED_RGB(A)_S3TC_DXT1/5_EXT. */
+		public final int glInternalFormat;
+
+		Format(int blockBytes, int glInternalFormat) {
+			this.blockBytes = blockBytes;
+			this.glInternalFormat = glInternalFormat;
+		}
+	}
+
+	/** Bump whenever a change alters the encoded blocks, so caches of earlier output are not reused. */
+	public static final int ENCODER_VERSION = 1;
+
+	static final int PARALLEL_BLOCK_ROWS = 8;
+
+	public static int compressedSize(Format format, int width, int height) {
+		return ((width + 3) / 4) * ((height + 3) / 4) * format.blockBytes;
+	}
+
+	public static byte[] compress(final byte[] rgba, final int width, final int height, final Format format,
+			boolean parallel) {
+		if (rgba.length < width * height * 4) {
+			throw new IllegalArgumentException("Expected " + width * height * 4 + " bytes, got " + rgba.length);
+		}
+		final byte[] out = new byte[compressedSize(format, width, height)];
+		int blockRows = (height + 3) / 4;
+		if (parallel && blockRows >= PARALLEL_BLOCK_ROWS) {
+			IntStream.range(0, blockRows).parallel().forEach(by -> compressRow(rgba, width, height, format, by, out));
+		} else {
+			for (int by = 0; by < blockRows; ++by) {
+				compressRow(rgba, width, height, format, by, out);
+			}
+		}
+		return out;
+	}
+
+	static void compressRow(byte[] rgba, int width, int height, Format format, int by, byte[] out) {
+		int blocksX = (width + 3) / 4;
+		int[] block = new int[64];
+		int[] palette = new int[12];
+		int[] alphas = new int[8];
+		int offset = by * blocksX * format.blockBytes;
+		for (int bx = 0; bx < blocksX; ++bx) {
+			gather(rgba, width, height, bx * 4, by * 4, block);
+			if (format == Format.BC3) {
+				encodeAlpha(block, alphas, out, offset);
+				offset += 8;
+			}
+			encodeColor(block, palette, out, offset);
+			offset += 8;
+		}
+	}
+
+	static void gather(byte[] rgba, int width, int height, int x0, int y0, int[] block) {
+		int i = 0;
+		for (int y = 0; y < 4; ++y) {
+			int row = Math.min(y0 + y, height - 1) * width;
+			for (int x = 0; x < 4; ++x) {
+				int in = (row + Math.min(x0 + x, width - 1)) * 4;
+				block[i++] = rgba[in] & 0xFF;
+				block[i++] = rgba[in + 1] & 0xFF;
+				block[i++] = rgba[in + 2] & 0xFF;
+				block[i++] = rgba[in + 3] & 0xFF;
+			}
+		}
+	}
+
+	static void encodeColor(int[] block, int[] palette, byte[] out, int offset) {
+		float meanR = 0, meanG = 0, meanB = 0;
+		for (int i = 0; i < 64; i += 4) {
+			meanR += block[i];
+			meanG += block[i + 1];
+			meanB += block[i + 2];
+		}
+		meanR /= 16;
+		meanG /= 16;
+		meanB /= 16;
+		float rr = 0, rg = 0, rb = 0, gg = 0, gb = 0, bb = 0;
+		for (int i = 0; i < 64; i += 4) {
+			float r = block[i] - meanR;
+			float g = block[i + 1] - meanG;
+			float b = block[i + 2] - meanB;
+			rr += r * r;
+			rg += r * g;
+			rb += r * b;
+			gg += g * g;
+			gb += g * b;
+			bb += b * b;
+		}
+
+		// Principal axis by power iteration, starting from the largest variance channel.
+		float ax = rr >= gg && rr >= bb ? 1 : 0.5f;
+		float ay = gg > rr && gg >= bb ? 1 : 0.5f;
+		float az = bb > rr && bb > gg ? 1 : 0.5f;
+		for (int k = 0; k < 4; ++k) {
+			float x = rr * ax + rg * ay + rb * az;
+			float y = rg * ax + gg * ay + gb * az;
+			float z = rb * ax + gb * ay + bb * az;
+			float m = Math.max(Math.abs(x), Math.max(Math.abs(y), Math.abs(z)));
+			if (m == 0) {
+				break;
+			}
+			ax = x / m;
+			ay = y / m;
+			az = z / m;
+		}
+
+		int minI = 0, maxI = 0;
+		float minP = Float.POSITIVE_INFINITY, maxP = Float.NEGATIVE_INFINITY;
+		for (int i = 0; i < 64; i += 4) {
+			float p = block[i] * ax + block[i + 1] * ay + block[i + 2] * az;
+			if (p < minP) {
+				minP = p;
+				minI = i;
+			}
+			if (p > maxP) {
+				maxP = p;
+				maxI = i;
+			}
+		}
+		int c0 = to565(block[maxI], block[maxI + 1], block[maxI + 2]);
+		int c1 = to565(block[minI], block[minI + 1], block[minI + 2]);
+		long indices = chooseIndices(block, c0, c1, palette);
+		int error = (int) (indices >>> 32);
+
+		// One least squares pass: solve for the endpoints that best fit the chosen indices.
+		float aa = 0, ab = 0, bb2 = 0;
+		float ar = 0, ag = 0, ab_ = 0, br = 0, bg = 0, bb_ = 0;
+		for (int i = 0; i < 16; ++i) {
+			int index = (int) (indices >>> (2 * i)) & 3;
+			float alpha = index == 0 ? 1 : index == 1 ? 0 : index == 2 ? 2f / 3 : 1f / 3;
+			float beta = 1 - alpha;
+			aa += alpha * alpha;
+			ab += alpha * beta;
+			bb2 += beta * beta;
+			ar += alpha * block[i * 4];
+			ag += alpha * block[i * 4 + 1];
+			ab_ += alpha * block[i * 4 + 2];
+			br += beta * block[i * 4];
+			bg += beta * block[i * 4 + 1];
+			bb_ += beta * block[i * 4 + 2];
+		}
+		float det = aa * bb2 - ab * ab;
+		if (Math.abs(det) > 1e-6f) {
+			float f = 1 / det;
+			int r0 = Math.round((ar * bb2 - br * ab) * f);
+			int g0 = Math.round((ag * bb2 - bg * ab) * f);
+			int b0 = Math.round((ab_ * bb2 - bb_ * ab) * f);
+			int r1 = Math.round((br * aa - ar * ab) * f);
+			int g1 = Math.round((bg * aa - ag * ab) * f);
+			int b1 = Math.round((bb_ * aa - ab_ * ab) * f);
+			int d0 = to565(clamp(r0), clamp(g0), clamp(b0));
+			int d1 = to565(clamp(r1), clamp(g1), clamp(b1));
+			long refined = chooseIndices(block, d0, d1, palette);
+			if ((int) (refined >>> 32) < error) {
+				c0 = d0;
+				c1 = d1;
+				indices = refined;
+			}
+		}
+
+		int bits = (int) indices;
+		if (c0 < c1) {
+			int t = c0;
+			c0 = c1;
+			c1 = t;
+			bits ^= 0x55555555;
+		} else if (c0 == c1) {
+			bits = 0;
+		}
+		out[offset] = (byte) c0;
+		out[offset + 1] = (byte) (c0 >>> 8);
+		out[offset + 2] = (byte) c1;
+		out[offset + 3] = (byte) (c1 >>> 8);
+		out[offset + 4] = (byte) bits;
+		out[offset + 5] = (byte) (bits >>> 8);
+		out[offset + 6] = (byte) (bits >>> 16);
+		out[offset + 7] = (byte) (bits >>> 24);
+	}
+
+	/**
+	 * Nearest four-colour palette entry for each texel. Returns the 32 index bits in the low word
+	 * and the total squared error in the high word.
+	 */
+	static long chooseIndices(int[] block, int c0, int c1, int[] palette) {
+		fourColorPalette(c0, c1, palette);
+		int bits = 0;
+		long error = 0;
+		for (int i = 0; i < 16; ++i) {
+			int r = block[i * 4], g = block[i * 4 + 1], b = block[i * 4 + 2];
+			int best = 0;
+			int bestError = Integer.MAX_VALUE;
+			for (int p = 0; p < 4; ++p) {
+				int dr = r - palette[p * 3], dg = g - palette[p * 3 + 1], db = b - palette[p * 3 + 2];
+				int e = dr * dr + dg * dg + db * db;
+				if (e < bestError) {
+					bestError = e;
+					best = p;
+				}
+			}
+			bits |= best << (2 * i);
+			error += bestError;
+		}
+		return (error << 32) | (bits & 0xFFFFFFFFL);
+	}
+
+	static void fourColorPalette(int c0, int c1, int[] palette) {
+		expand565(c0, palette, 0);
+		expand565(c1, palette, 3);
+		for (int c = 0; c < 3; ++c) {
+			palette[6 + c] = (2 * palette[c] + palette[3 + c]) / 3;
+			palette[9 + c] = (palette[c] + 2 * palette[3 + c]) / 3;
+		}
+	}
+
+	static void encodeAlpha(int[] block, int[] values, byte[] out, int offset) {
+		int a0 = 0, a1 = 255;
+		for (int i = 3; i < 64; i += 4) {
+			a0 = Math.max(a0, block[i]);
+			a1 = Math.min(a1, block[i]);
+		}
+		out[offset] = (byte) a0;
+		out[offset + 1] = (byte) a1;
+		long bits = 0;
+		if (a0 != a1) {
+			alphaPalette(a0, a1, values);
+			for (int i = 0; i < 16; ++i) {
+				int a = block[i * 4 + 3];
+				int best = 0;
+				int bestError = Integer.MAX_VALUE;
+				for (int p = 0; p < 8; ++p) {
+					int e = Math.abs(a - values[p]);
+					if (e < bestError) {
+						bestError = e;
+						best = p;
+					}
+				}
+				bits |= (long) best << (3 * i);
+			}
+		}
+		for (int k = 0; k < 6; ++k) {
+			out[offset + 2 + k] = (byte) (bits >>> (8 * k));
+		}
+	}
+
+	static void alphaPalette(int a0, int a1, int[] values) {
+		values[0] = a0;
+		values[1] = a1;
+		if (a0 > a1) {
+			for (int i = 1; i < 7; ++i) {
+				values[i + 1] = ((7 - i) * a0 + i * a1) / 7;
+			}
+		} else {
+			for (int i = 1; i < 5; ++i) {
+				values[i + 1] = ((5 - i) * a0 + i * a1) / 5;
+			}
+			values[6] = 0;
+			values[7] = 255;
+		}
+	}
+
+	static int clamp(int c) {
+		return c < 0 ? 0 : c > 255 ? 255 : c;
+	}
+
+	static int to565(int r, int g, int b) {
+		return ((r * 31 + 127) / 255) << 11 | ((g * 63 + 127) / 255) << 5 | ((b * 31 + 127) / 255);
+	}
+
+	static void expand565(int c, int[] rgb, int offset) {
+		int r = (c >>> 11) & 31, g = (c >>> 5) & 63, b = c & 31;
+		rgb[offset] = (r << 3) | (r >>> 2);
+		rgb[offset + 1] = (g << 2) | (g >>> 4);
+		rgb[offset + 2] = (b << 3) | (b >>> 2);
+	}
+
+	/** Decodes blocks back to RGBA8, as a GPU would, for verification. */
+	public static byte[] decompress(byte[] blocks, int width, int height, Format format) {
+		byte[] rgba = new byte[width * height * 4];
+		int blocksX = (width + 3) / 4;
+		int[] palette = new int[12];
+		int[] alphas = new int[8];
+		for (int by = 0; by < (height + 3) / 4; ++by) {
+			for (int bx = 0; bx < blocksX; ++bx) {
+				int offset = (by * blocksX + bx) * format.blockBytes;
+				long alphaBits = 0;
+				if (format == Format.BC3) {
+					alphaPalette(blocks[offset] & 0xFF, blocks[offset + 1] & 0xFF, alphas);
+					for (int k = 0; k < 6; ++k) {
+						alphaBits |= (long) (blocks[offset + 2 + k] & 0xFF) << (8 * k);
+					}
+					offset += 8;
+				}
+				int c0 = (blocks[offset] & 0xFF) | (blocks[offset + 1] & 0xFF) << 8;
+				int c1 = (blocks[offset + 2] & 0xFF) | (blocks[offset + 3] & 0xFF) << 8;
+				int bits = (blocks[offset + 4] & 0xFF) | (blocks[offset + 5] & 0xFF) << 8
+						| (blocks[offset + 6] & 0xFF) << 16 | (blocks[offset + 7] & 0xFF) << 24;
+				fourColorPalette(c0, c1, palette);
+				boolean threeColor = format == Format.BC1 && c0 <= c1;
+				if (threeColor) {
+					for (int c = 0; c < 3; ++c) {
+						palette[6 + c] = (palette[c] + palette[3 + c]) / 2;
+						palette[9 + c] = 0;
+					}
+				}
+				for (int i = 0; i < 16; ++i) {
+					int x = bx * 4 + (i & 3);
+					int y = by * 4 + (i >> 2);
+					if (x >= width || y >= height) {
+						continue;
+					}
+					int index = (bits >>> (2 * i)) & 3;
+					int out = (y * width + x) * 4;
+					rgba[out] = (byte) palette[index * 3];
+					rgba[out + 1] = (byte) palette[index * 3 + 1];
+					rgba[out + 2] = (byte) palette[index * 3 + 2];
+					if (format == Format.BC3) {
+						rgba[out + 3] = (byte) alphas[(int) (alphaBits >>> (3 * i)) & 7];
+					} else {
+						rgba[out + 3] = (byte) (threeColor && index == 3 ? 0 : 255);
+					}
+				}
+			}
+		}
+		return rgba;
+	}
+
+	/** Peak signal to noise ratio in dB over the given channels (3 for RGB, 4 for RGBA). */
+	public static double psnr(byte[] a, byte[] b, int channels) {
+		long sum = 0;
+		long count = 0;
+		for (int i = 0; i + 3 < a.length; i += 4) {
+			for (int c = 0; c < channels; ++c) {
+				int d = (a[i + c] & 0xFF) - (b[i + c] & 0xFF);
+				sum += d * d;
+			}
+			count += channels;
+		}
+		if (sum == 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+		double mse = (double) sum / count;
+		return 10 * Math.log10(255.0 * 255.0 / mse);
+	}
+}
@@ -0,0 +1,95 @@
+package example.texture;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Block compressed mip levels ready for glCompressedTexImage2D, with a small binary format for
+ * caching them on disk: magic, version, format, level count, then width, height, length and
+ * bytes per level.
+ */
+public class CompressedTexture {
+
+	static final int MAGIC = 0x42435458; // "BCTX"
+	public static final int VERSION = 1;
+
+	public final BlockCompressor.Format format;
+	public final int[] widths;
+	public final int[] heights;
+	public final byte[][] levels;
+
+	public CompressedTexture(BlockCompressor.Format format, int[] widths, int[] heights, byte[][] levels) {
+		this.format = format;
+		this.widths = widths;
+		this.heights = heights;
+		this.levels = levels;
+	}
+
+	public static CompressedTexture compress(MipChain chain, BlockCompressor.Format format, boolean parallel) {
+		int count = chain.getLevelCount();
+		byte[][] levels = new byte[count][];
+		for (int i = 0; i < count; ++i) {
+			levels[i] = BlockCompressor.compress(chain.levels[i], chain.widths[i], chain.heights[i], format, parallel);
+		}
+		return new CompressedTexture(format, chain.widths.clone(), chain.heights.clone(), levels);
+	}
+
+	public int getLevelCount() {
+		return levels.length;
+	}
+
+	public int getByteCount() {
+		int total = 0;
+		for (byte[] level : levels) {
+			total += level.length;
+		}
+		return total;
+	}
+
+	/** Decodes one level back to RGBA8. */
+	public byte[] decompress(int level) {
+		return BlockCompressor.decompress(levels[level], widths[level], heights[level], format);
+	}
+
+	public void write(OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(stream);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(format.name());
+		out.writeInt(levels.length);
+		for (int i = 0; i < levels.length; ++i) {
+			out.writeInt(widths[i]);
+			out.writeInt(heights[i]);
+			out.writeInt(levels[i].length);
+			out.write(levels[i]);
+		}
+		out.flush();
+	}
+
+	public static CompressedTexture read(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(stream);
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("Not a compressed texture or unsupported version");
+		}
+		BlockCompressor.Format format = BlockCompressor.Format.valueOf(in.readUTF());
+		int count = in.readInt();
+		int[] widths = new int[count];
+		int[] heights = new int[count];
+		byte[][] levels = new byte[count][];
+		for (int i = 0; i < count; ++i) {
+			widths[i] = in.readInt();
+			heights[i] = in.readInt();
+			int length = in.readInt();
+			if (length != BlockCompressor.compressedSize(format, widths[i], heights[i])) {
+				throw new IOException("Level " + i + " has " + length + " bytes, expected "
+						+ BlockCompressor.compressedSize(format, widths[i], heights[i]));
+			}
+			levels[i] = new byte[length];
+			in.readFully(levels[i]);
+		}
+		return new CompressedTexture(format, widths, heights, levels);
+	}
+}
@@ -0,0 +1,158 @@
+package example.texture;
+
+import java.nio.ByteBuffer;
+import java.util.stream.IntStream;
+
+/**
+ * Full mip chain of an RGBA8 image built on the CPU. Each level is box filtered from the one
+ * above in linear light (sRGB decoded, averaged, re-encoded) with colour weighted by alpha so
+ * transparent texels do not darken their neighbours. Rows of large levels are filtered in
+ * parallel on the common ForkJoin pool.
+ */
+public class MipChain {
+
+	static final int PARALLEL_TEXELS = 1 << 14;
+	static final int LINEAR_STEPS = 1 << 14;
+
+	static final float[] SRGB_TO_LINEAR = new float[256];
+	static final byte[] LINEAR_TO_SRGB = new byte[LINEAR_STEPS + 1];
+
+	static {
+		for (int i = 0; i < 256; ++i) {
+			double c = i / 255.0;
+			SRGB_TO_LINEAR[i] = (float) (c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4));
+		}
+		for (int i = 0; i <= LINEAR_STEPS; ++i) {
+			double l = (double) i / LINEAR_STEPS;
+			double c = l <= 0.0031308 ? l * 12.92 : 1.055 * Math.pow(l, 1 / 2.4) - 0.055;
+			LINEAR_TO_SRGB[i] = (byte) Math.round(c * 255);
+		}
+	}
+
+	public final int[] widths;
+	public final int[] heights;
+	public final byte[][] levels;
+
+	MipChain(int[] widths, int[] heights, byte[][] levels) {
+		this.widths = widths;
+		this.heights = heights;
+		this.levels = levels;
+	}
+
+	public int getLevelCount() {
+		return levels.length;
+	}
+
+	public int getByteCount() {
+		int total = 0;
+		for (byte[] level : levels) {
+			total += level.length;
+		}
+		return total;
+	}
+
+	/** Number of levels down to 1x1. */
+	public static int levelCount(int width, int height) {
+		return 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+	}
+
+	public static float srgbToLinear(int c) {
+		return SRGB_TO_LINEAR[c & 0xFF];
+	}
+
+	public static int linearToSrgb(float l) {
+		if (l <= 0) {
+			return 0;
+		}
+		if (l >= 1) {
+			return 255;
+		}
+		return LINEAR_TO_SRGB[(int) (l * LINEAR_STEPS + 0.5f)] & 0xFF;
+	}
+
+	/** Builds the chain from the remaining bytes of rgba, which is left untouched. */
+	public static MipChain build(ByteBuffer rgba, int width, int height, int maxLevels, boolean parallel) {
+		byte[] base = new byte[width * height * 4];
+		rgba.duplicate().get(base);
+		return build(base, width, height, maxLevels, parallel);
+	}
+
+	/** Builds the chain over base, which becomes level 0. maxLevels <= 0 means a full chain. */
+	public static MipChain build(byte[] base, int width, int height, int maxLevels, boolean parallel) {
+		if (base.length < width * height * 4) {
+			throw new IllegalArgumentException("Expected " + width * height * 4 + " bytes, got " + base.length);
+		}
+		int count = levelCount(width, height);
+		if (maxLevels > 0) {
+			count = Math.min(count, maxLevels);
+		}
+		int[] widths = new int[count];
+		int[] heights = new int[count];
+		byte[][] levels = new byte[count][];
+		widths[0] = width;
+		heights[0] = height;
+		levels[0] = base;
+		for (int i = 1; i < count; ++i) {
+			widths[i] = Math.max(1, widths[i - 1] / 2);
+			heights[i] = Math.max(1, heights[i - 1] / 2);
+			levels[i] = new byte[widths[i] * heights[i] * 4];
+			downsample(levels[i - 1], widths[i - 1], heights[i - 1], levels[i], widths[i], heights[i], parallel);
+		}
+		return new MipChain(widths, heights, levels);
+	}
+
+	static void downsample(final byte[] src, final int sw, final int sh, final byte[] dst, final int dw, final int dh,
+			boolean parallel) {
+		if (parallel && dw * dh >= PARALLEL_TEXELS) {
+			IntStream.range(0, dh).parallel().forEach(y -> downsampleRow(src, sw, sh, dst, dw, dh, y));
+		} else {
+			for (int y = 0; y < dh; ++y) {
+				downsampleRow(src, sw, sh, dst, dw, dh, y);
+			}
+		}
+	}
+
+	/**
+	 * Each destination texel averages the source texels in its footprint: 2x2 for even sizes,
+	 * 2x3 or 3x3 at the last row or column of odd sizes, so no source texel is dropped.
+	 */
+	static void downsampleRow(byte[] src, int sw, int sh, byte[] dst, int dw, int dh, int y) {
+		int sy0 = y * sh / dh;
+		int sy1 = Math.max(sy0 + 1, (y + 1) * sh / dh);
+		int out = y * dw * 4;
+		for (int x = 0; x < dw; ++x) {
+			int sx0 = x * sw / dw;
+			int sx1 = Math.max(sx0 + 1, (x + 1) * sw / dw);
+			float r = 0, g = 0, b = 0, a = 0;
+			float pr = 0, pg = 0, pb = 0;
+			for (int sy = sy0; sy < sy1; ++sy) {
+				int in = (sy * sw + sx0) * 4;
+				for (int sx = sx0; sx < sx1; ++sx, in += 4) {
+					float lr = SRGB_TO_LINEAR[src[in] & 0xFF];
+					float lg = SRGB_TO_LINEAR[src[in + 1] & 0xFF];
+					float lb = SRGB_TO_LINEAR[src[in + 2] & 0xFF];
+					float la = (src[in + 3] & 0xFF) / 255f;
+					r += lr;
+					g += lg;
+					b += lb;
+					pr += lr * la;
+					pg += lg * la;
+					pb += lb * la;
+					a += la;
+				}
+			}
+			int n = (sx1 - sx0) * (sy1 - sy0);
+			if (a > 0) {
+				dst[out] = (byte) linearToSrgb(pr / a);
+				dst[out + 1] = (byte) linearToSrgb(pg / a);
+				dst[out + 2] = (byte) linearToSrgb(pb / a);
+			} else {
+				dst[out] = (byte) linearToSrgb(r / n);
+				dst[out + 1] = (byte) linearToSrgb(g / n);
+				dst[out + 2] = (byte) linearToSrgb(b / n);
+			}
+			dst[out + 3] = (byte) Math.round(a / n * 255);
+			out += 4;
+		}
+	}
+}
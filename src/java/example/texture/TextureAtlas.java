@@ -0,0 +1,172 @@
+package example.texture;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Many small RGBA8 images packed into shared pages. Each image is surrounded by padding filled
+ * by repeating its edge texels, so bilinear filtering and the first few mip levels do not
+ * bleed in colour from neighbours. Texture coordinates in [0, 1] over an image are mapped to
+ * its rectangle on the page by remapUv; coordinates that rely on GL_REPEAT cannot be atlased.
+ */
+public class TextureAtlas {
+
+	public final int pageWidth;
+	public final int pageHeight;
+	public final int padding;
+
+	/** Page and content rectangle of each image, excluding padding. */
+	public final int[] page;
+	public final int[] x;
+	public final int[] y;
+	public final int[] width;
+	public final int[] height;
+
+	final List<AtlasPacker> packers;
+	final byte[][] pages;
+
+	TextureAtlas(int pageWidth, int pageHeight, int padding, List<AtlasPacker> packers, int[] page,
+			int[] x, int[] y, int[] width, int[] height) {
+		this.pageWidth = pageWidth;
+		this.pageHeight = pageHeight;
+		this.padding = padding;
+		this.packers = packers;
+		this.page = page;
+		this.x = x;
+		this.y = y;
+		this.width = width;
+		this.height = height;
+		this.pages = new byte[packers.size()][];
+	}
+
+	/**
+	 * Places images of the given sizes, tallest first, on as many pages as needed. Each image
+	 * goes on the first page with room for it. Pixels are copied in separately by blit.
+	 */
+	public static TextureAtlas pack(int pageWidth, int pageHeight, int padding, int[] widths, int[] heights) {
+		int count = widths.length;
+		long[] order = new long[count];
+		for (int i = 0; i < count; ++i) {
+			int w = widths[i] + 2 * padding;
+			int h = heights[i] + 2 * padding;
+			if (w > pageWidth || h > pageHeight) {
+				throw new IllegalArgumentException(
+						"Image " + i + " of " + widths[i] + "x" + heights[i] + " does not fit a " + pageWidth + "x" + pageHeight + " page");
+			}
+			order[i] = ((long) h << 42) | ((long) w << 21) | i;
+		}
+		Arrays.sort(order);
+
+		List<AtlasPacker> packers = new ArrayList<>();
+		int[] page = new int[count];
+		int[] x = new int[count];
+		int[] y = new int[count];
+		int[] position = new int[2];
+		for (int k = count - 1; k >= 0; --k) {
+			int i = (int) (order[k] & ((1 << 21) - 1));
+			int w = widths[i] + 2 * padding;
+			int h = heights[i] + 2 * padding;
+			int p = 0;
+			while (p < packers.size() && !packers.get(p).insert(w, h, position)) {
+				++p;
+			}
+			if (p == packers.size()) {
+				AtlasPacker packer = new AtlasPacker(pageWidth, pageHeight);
+				packer.insert(w, h, position);
+				packers.add(packer);
+			}
+			page[i] = p;
+			x[i] = position[0] + padding;
+			y[i] = position[1] + padding;
+		}
+		return new TextureAtlas(pageWidth, pageHeight, padding, packers, page, x, y, widths.clone(), heights.clone());
+	}
+
+	public int getImageCount() {
+		return page.length;
+	}
+
+	public int getPageCount() {
+		return packers.size();
+	}
+
+	/** RGBA8 pixels of a page, allocated on first use. */
+	public synchronized byte[] getPage(int p) {
+		if (pages[p] == null) {
+			pages[p] = new byte[pageWidth * pageHeight * 4];
+		}
+		return pages[p];
+	}
+
+	/** Content area of all images over the page area up to each page's used height. */
+	public float getOccupancy() {
+		long content = 0;
+		for (int i = 0; i < page.length; ++i) {
+			content += (long) width[i] * height[i];
+		}
+		long area = 0;
+		for (AtlasPacker packer : packers) {
+			area += (long) pageWidth * packer.getUsedHeight();
+		}
+		return area == 0 ? 0 : (float) content / area;
+	}
+
+	/** Copies the remaining bytes of rgba into the image's rectangle and fills its padding. */
+	public void blit(int image, ByteBuffer rgba) {
+		byte[] pixels = new byte[width[image] * height[image] * 4];
+		rgba.duplicate().get(pixels);
+		blit(image, pixels);
+	}
+
+	public void blit(int image, byte[] rgba) {
+		byte[] dst = getPage(page[image]);
+		int w = width[image];
+		int h = height[image];
+		int rowBytes = w * 4;
+		for (int row = -padding; row < h + padding; ++row) {
+			int srcRow = Math.min(Math.max(row, 0), h - 1) * rowBytes;
+			int out = ((y[image] + row) * pageWidth + x[image]) * 4;
+			for (int col = -padding; col < 0; ++col) {
+				System.arraycopy(rgba, srcRow, dst, out + col * 4, 4);
+			}
+			System.arraycopy(rgba, srcRow, dst, out, rowBytes);
+			for (int col = w; col < w + padding; ++col) {
+				System.arraycopy(rgba, srcRow + rowBytes - 4, dst, out + col * 4, 4);
+			}
+		}
+	}
+
+	/** Blits every image in parallel; images never overlap so no locking is needed. */
+	public void blitAll(final byte[][] images) {
+		for (int p = 0; p < getPageCount(); ++p) {
+			getPage(p);
+		}
+		IntStream.range(0, images.length).parallel().forEach(i -> blit(i, images[i]));
+	}
+
+	/** Maps texture coordinates over the image to coordinates over its page. */
+	public float[] remapUv(int image, float[] uv) {
+		float[] out = new float[uv.length];
+		remapUv(image, uv, out);
+		return out;
+	}
+
+	public void remapUv(int image, float[] uv, float[] out) {
+		float scaleU = (float) width[image] / pageWidth;
+		float scaleV = (float) height[image] / pageHeight;
+		float offsetU = (float) x[image] / pageWidth;
+		float offsetV = (float) y[image] / pageHeight;
+		for (int i = 0; i + 1 < uv.length; i += 2) {
+			out[i] = offsetU + uv[i] * scaleU;
+			out[i + 1] = offsetV + uv[i + 1] * scaleV;
+		}
+	}
+
+	/** Levels that keep padding at least one texel wide, for building page mip chains. */
+	public int getSafeMipLevels() {
+		return padding == 0 ? 1 : 32 - Integer.numberOfLeadingZeros(padding);
+	}
+}
@@ -0,0 +1,39 @@
+(ns game.array-builder-test
+  (:require [clojure.test :refer :all]
+            [game.shaders :refer [create-mesh]])
+  (:import (example.buffers FloatArrayBuilder IntArrayBuilder IntArrayBuilder$SegmentFiller)
+           (example.math Utils)))
+
+(deftest append-and-convert
+  (testing "Appended values come back through the Utils converters"
+    (let [positions (doto (FloatArrayBuilder. 1) (.add (float 1) (float 2) (float 3)) (.add (float 4)))
+          buf (Utils/toFloatBuffer positions)]
+      (is (= 4 (.size positions)))
+      (is (= 4 (.remaining buf)))
+      (is (= 4.0 (.get buf 3))))))
+
+(deftest parallel-fill
+  (testing "Segments filled in parallel cover the reserved range exactly once"
+    (let [builder (doto (IntArrayBuilder.) (.add 7))]
+      (.fillParallel builder 100000 1000
+                     (reify IntArrayBuilder$SegmentFiller
+                       (fill [this array from to]
+                         (doseq [i (range from to)] (aset ^ints array i (int i))))))
+      (is (= 100001 (.size builder)))
+      (is (= 7 (.get builder 0)))
+      (is (= (range 1 100001) (map #(.get builder (int %)) (range 1 100001)))))))
+
+(deftest mesh-from-builders
+  (testing "create-mesh accepts builders"
+    (let [mesh (create-mesh {:positions (doto (FloatArrayBuilder.) (.add (float 0) (float 0) (float 0)))
+                             :normals   [0 0 1]
+                             :uv        [0 0]
+                             :triangles (Utils/rangeBuilder 0 1)})]
+      (is (= [0.0 0.0 0.0] (vec (:positions mesh))))
+      (is (= [0] (vec (:triangles mesh))))))
+  (testing "A full builder hands over its backing array"
+    (let [positions (doto (FloatArrayBuilder. 3) (.add (float 1) (float 2) (float 3)))
+          backing (.array positions)
+          mesh (create-mesh {:positions positions :normals [0 0 1] :uv [0 0] :triangles [0]})]
+      (is (identical? backing (:positions mesh)))
+      (is (= 0 (.size positions))))))
@@ -0,0 +1,75 @@
+(ns game.buffers-test
+  (:require [clojure.test :refer :all])
+  (:import (example.buffers DirectBufferPool FrameArena)
+           (example.math Utils)))
+
+(defn debug-pool []
+  (DirectBufferPool. DirectBufferPool/GC (* 1024 1024) (* 16 1024 1024) true))
+
+(deftest pool-recycles-released-buffers
+  (testing "A released buffer is handed out again for the same size class"
+    (let [pool (debug-pool)
+          a (.acquire pool 100)
+          _ (.release pool a)
+          b (.acquire pool 110)]
+      (is (identical? a b))
+      (is (= 110 (.limit b)))
+      (is (= 112 (.getBytesRecycled pool)))
+      (.release pool b)
+      (.assertNoLeaks pool))))
+
+(deftest pool-reports-leaks
+  (testing "Unreleased buffers are reported with their allocation site"
+    (let [pool (debug-pool)
+          floats (.acquireFloats pool 16)]
+      (is (= 1 (count (.leakReport pool))))
+      (is (thrown? IllegalStateException (.assertNoLeaks pool)))
+      (.release pool floats)
+      (is (thrown? IllegalStateException (.release pool floats)))
+      (.assertNoLeaks pool))))
+
+(deftest unreleased-buffers-fall-back-to-gc
+  (testing "Outside debug mode a dropped buffer is reclaimed once the GC finds it"
+    (let [pool (DirectBufferPool. DirectBufferPool/GC (* 1024 1024) (* 16 1024 1024) false)]
+      (.acquire pool 1000)
+      (loop [attempts 0]
+        (when (and (pos? (.getOutstandingCount pool)) (< attempts 100))
+          (System/gc)
+          (Thread/sleep 10)
+          (recur (inc attempts))))
+      (is (= 0 (.getOutstandingCount pool)))
+      (is (= 1024 (.getBytesCollected pool)))
+      (is (= 0 (.getBytesLive pool) (.getBytesAllocated pool))))))
+
+(deftest staging-buffers-round-trip
+  (testing "Pooled conversions copy the values and go back to the pool on release"
+    (let [pool (debug-pool)
+          floats (Utils/toFloatBuffer pool (float-array [1 2 3]))
+          ints (Utils/toIntBuffer pool (Utils/rangeBuilder 0 5))]
+      (is (= [1.0 2.0 3.0] (map #(.get floats (int %)) (range (.remaining floats)))))
+      (is (= [0 1 2 3 4] (map #(.get ints (int %)) (range (.remaining ints)))))
+      (.release pool floats)
+      (.release pool ints)
+      (.assertNoLeaks pool))))
+
+(deftest arena-reset
+  (testing "Arena overflow blocks go back to the pool on reset"
+    (let [pool (debug-pool)
+          arena (FrameArena. pool 256)]
+      (dotimes [_ 10] (.allocateFloats arena 32))
+      (is (< 1 (.getOutstandingCount pool)))
+      (.reset arena)
+      (is (= 1 (.getOutstandingCount pool)))
+      (is (= 1280 (.getPeakBytesPerFrame arena)))
+      (.release arena)
+      (.assertNoLeaks pool))))
+
+(deftest arena-reset-poisons-stale-buffers
+  (testing "In debug mode a buffer kept past reset reads back as NaN"
+    (let [pool (debug-pool)
+          arena (FrameArena. pool 256)
+          stale (.floats arena (float-array [1 2 3]))]
+      (.reset arena)
+      (is (every? #(Float/isNaN %) (map #(.get stale (int %)) (range 3))))
+      (.release arena)
+      (.assertNoLeaks pool))))
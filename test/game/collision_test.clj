@@ -0,0 +1,113 @@
+(ns game.collision-test
+  (:require [clojure.test :refer :all]
+            [game.core :refer [update-entity]]
+            [game.collision :refer :all]
+            [game.shaders :refer [create-mesh]])
+  (:import (org.joml Matrix4f)))
+
+(defn random-boxes [^java.util.Random random n world]
+  (vec (repeatedly n #(let [x (* world (.nextFloat random)) y (* world (.nextFloat random)) z (* world (.nextFloat random))
+                            h (+ 0.5 (* 2 (.nextFloat random)))]
+                        [(- x h) (- y h) (- z h) (+ x h) (+ y h) (+ z h)]))))
+
+(defn brute-force-pairs
+  "The oracle: every pair of [id box] entries tested directly."
+  [entries]
+  (let [entries (vec entries)
+        n (count entries)
+        ids (int-array (map first entries))
+        ^"[[F" boxes (into-array (map #(float-array (second %)) entries))]
+    (loop [i 0 j 1 found (transient #{})]
+      (cond
+        (>= i n) (persistent! found)
+        (>= j n) (recur (inc i) (+ i 2) found)
+        :else (let [^floats a (aget boxes i)
+                    ^floats b (aget boxes j)]
+                (recur i (inc j)
+                       (if (and (<= (aget a 0) (aget b 3)) (<= (aget b 0) (aget a 3))
+                                (<= (aget a 1) (aget b 4)) (<= (aget b 1) (aget a 4))
+                                (<= (aget a 2) (aget b 5)) (<= (aget b 2) (aget a 5)))
+                         (conj! found [(min (aget ids i) (aget ids j)) (max (aget ids i) (aget ids j))])
+                         found)))))))
+
+(defn moved [random boxes]
+  (mapv (fn [box] (let [d (- (.nextFloat ^java.util.Random random) 0.5)] (mapv #(+ % d) box))) boxes))
+
+(deftest matches-brute-force-over-moving-frames
+  (testing "Incremental updates, removals and re-additions agree with the oracle with no duplicates"
+    (let [random (java.util.Random. 11)
+          broadphase (create-broadphase 16)
+          initial (random-boxes random 800 30)
+          ids (mapv #(add-body broadphase %) initial)]
+      (loop [frame 0 live (zipmap ids initial)]
+        (when (< frame 12)
+          (update-broadphase broadphase)
+          (let [pairs (overlapping-pairs broadphase)]
+            (is (= (count pairs) (count (set pairs))))
+            (is (= (brute-force-pairs live) (set pairs))))
+          (let [moved-live (zipmap (keys live) (moved random (vals live)))
+                removed (take 20 (keys moved-live))
+                _ (doseq [id removed] (remove-body broadphase id))
+                _ (doseq [[id box] (apply dissoc moved-live removed)] (set-body-bounds broadphase id box))
+                added (random-boxes random (if (even? frame) 20 200) 30)
+                added-ids (mapv #(add-body broadphase %) added)]
+            (recur (inc frame) (merge (apply dissoc moved-live removed) (zipmap added-ids added)))))))))
+
+(deftest parallel-sweep-matches-brute-force
+  (testing "A world large enough for the parallel path gives the oracle's pairs"
+    (let [random (java.util.Random. 5)
+          boxes (random-boxes random 9000 60)
+          broadphase (create-broadphase 9000)
+          sequential (create-broadphase 9000)]
+      (set! (.parallel sequential) false)
+      (doseq [box boxes] (add-body broadphase box) (add-body sequential box))
+      (update-broadphase broadphase)
+      (update-broadphase sequential)
+      (is (= (brute-force-pairs (map-indexed vector boxes))
+             (set (overlapping-pairs broadphase))))
+      (is (= (overlapping-pairs sequential) (overlapping-pairs broadphase))))))
+
+(deftest removed-ids-are-reused-after-update
+  (testing "Adding straight after a removal, even at capacity, neither duplicates nor loses a body"
+    (let [broadphase (create-broadphase 16)
+          ids (mapv #(add-body broadphase [% 0 0 (+ % 1.5) 1 1]) (range 16))]
+      (update-broadphase broadphase)
+      (remove-body broadphase 0)
+      (let [added (add-body broadphase [0 0 0 1 1 1])]
+        (is (= 16 added))
+        (update-broadphase broadphase)
+        (is (= 16 (.getBodyCount broadphase)))
+        (is (= (set (concat [[1 2] [1 16]] (map #(vector % (inc %)) (range 2 15))))
+               (set (overlapping-pairs broadphase))))
+        (is (= (count (overlapping-pairs broadphase)) (count (set (overlapping-pairs broadphase)))))
+        (is (= 0 (add-body broadphase [20 0 0 21 1 1])))
+        (update-broadphase broadphase)
+        (is (= 17 (.getBodyCount broadphase)))
+        (is (not-any? #(= 0 (first %)) (overlapping-pairs broadphase)))))))
+
+(deftest touching-boxes-overlap
+  (let [broadphase (create-broadphase)]
+    (add-body broadphase [0 0 0 1 1 1])
+    (add-body broadphase [1 0 0 2 1 1])
+    (add-body broadphase [2.5 0 0 3 1 1])
+    (update-broadphase broadphase)
+    (is (= [[0 1]] (overlapping-pairs broadphase)))))
+
+(deftest collision-world-tracks-model-transforms
+  (testing "World boxes follow the model matrix and report pairs each update"
+    (let [pairs (atom nil)
+          world (create-collision-world #(reset! pairs (overlapping-pairs (:broadphase %))))
+          cube (mesh-bounds (create-mesh {:positions [-1 -1 -1 1 1 1] :normals (repeat 6 0) :uv (repeat 4 0) :triangles []}))
+          a-tr (Matrix4f.)
+          b-tr (-> (Matrix4f.) (.translate (float 5) (float 0) (float 0)))
+          a (world-add world cube a-tr)
+          b (world-add world cube b-tr)]
+      (is (= [-1.0 -1.0 -1.0 1.0 1.0 1.0] (map double cube)))
+      (update-entity world nil 0.016)
+      (is (= [] @pairs))
+      (.translate b-tr (float -3.5) (float 0) (float 0))
+      (update-entity world nil 0.016)
+      (is (= [[a b]] @pairs))
+      (world-remove world b)
+      (update-entity world nil 0.016)
+      (is (= [] @pairs)))))
@@ -0,0 +1,57 @@
+(ns game.lod-test
+  (:require [clojure.test :refer :all]
+            [game.lod :refer :all]
+            [game.shaders :refer [create-mesh]])
+  (:import (example.mesh MeshSimplifier LodSelector)
+           (org.joml Matrix4f)))
+
+(defn grid-mesh
+  "An n by n grid of quads in the xy plane displaced in z by bump."
+  [n bump]
+  (let [index (fn [x y] (+ x (* y (inc n))))]
+    (create-mesh
+      {:positions (for [y (range (inc n)) x (range (inc n)) c [x y (* bump (Math/sin (* 0.3 x)) (Math/cos (* 0.2 y)))]] c)
+       :normals   (repeat (* 3 (inc n) (inc n)) 0)
+       :uv        (repeat (* 2 (inc n) (inc n)) 0)
+       :triangles (for [y (range n) x (range n)
+                        i [(index x y) (index (inc x) y) (index (inc x) (inc y))
+                           (index x y) (index (inc x) (inc y)) (index x (inc y))]] i)})))
+
+(deftest flat-grid-simplifies-without-error
+  (testing "A plane collapses to a handful of triangles with zero error"
+    (let [levels (lod-levels (build-lod-chain (grid-mesh 32 0) {:min-triangles 8 :max-levels 10}))]
+      (is (= 2048 (:triangles (first levels))))
+      (is (<= (:triangles (last levels)) 16))
+      (is (every? #(< (:error %) 1e-4) levels)))))
+
+(deftest bumpy-grid-levels
+  (testing "Each level roughly halves the triangles and its recorded error bounds the deviation"
+    (let [mesh (grid-mesh 32 2)
+          chain (build-lod-chain mesh {:min-triangles 8 :max-levels 6})
+          levels (lod-levels chain)]
+      (is (= 6 (count levels)))
+      (doseq [[finer coarser] (partition 2 1 levels)]
+        (is (<= (:triangles coarser) (quot (:triangles finer) 2)))
+        (is (<= (:error finer) (:error coarser))))
+      (doseq [level (.levels chain)]
+        (is (<= (MeshSimplifier/deviation (:positions mesh) (:triangles mesh) (.triangles level))
+                (+ (.error level) 1e-4)))))))
+
+(deftest parallel-build
+  (testing "Parallel build matches the sequential one"
+    (let [meshes [(grid-mesh 16 1) (grid-mesh 24 2)]]
+      (is (= (map (comp lod-levels build-lod-chain) meshes)
+             (map lod-levels (build-lod-chains meshes)))))))
+
+(deftest distant-meshes-use-coarser-levels
+  (testing "Selection moves to coarser levels as the mesh moves away"
+    (let [chain (build-lod-chain (grid-mesh 32 2) {:min-triangles 8})
+          selector (LodSelector. 1.0)
+          projection (-> (Matrix4f.) (.perspective (float 1.0) (float 1.0) (float 0.1) (float 10000)))
+          select-at (fn [distance]
+                      (.select selector chain projection (Matrix4f.)
+                               (-> (Matrix4f.) (.translate (float 0) (float 0) (float (- distance))))
+                               (float 1080)))]
+      (is (= 0 (select-at 10)))
+      (is (< 0 (select-at 2000)))
+      (is (apply <= (map select-at [10 100 1000 5000]))))))
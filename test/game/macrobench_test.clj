@@ -0,0 +1,89 @@
+(ns game.macrobench-test
+  (:require [clojure.test :refer :all]
+            [game.macrobench :refer :all]
+            [game.gl :refer :all]
+            [game.core :refer [main-loop entity-list entity-list-set]]
+            [game.task-queue :refer [queue-action take-actions requeue-actions]])
+  (:import (org.lwjgl.opengl GL11)
+           (game.shaders GLBuffer)))
+
+(deftest recording-backend-sees-the-render-path
+  (testing "A replayed frame of one SimpleScene makes the expected GL calls in order"
+    (let [backend (recording-gl-backend)
+          saved @entity-list]
+      (with-gl-backend backend
+        (let [[scene] (build-scene {:meshes 1 :grid 2 :texture-size 4 :entities 1 :controllers []})]
+          (is (pos? (:gen-buffer (gl-call-counts backend))))
+          (reset-gl-calls backend)
+          (entity-list-set scene)
+          (try
+            (main-loop 0 0.016)
+            (finally (dosync (ref-set entity-list saved))))))
+      (is (= [:clear :use-program :uniform-matrix4fv :uniform-matrix4fv :polygon-mode
+              :enable-vertex-attrib-array :enable-vertex-attrib-array :enable-vertex-attrib-array
+              :active-texture :bind-texture :bind-buffer :draw-elements :swap-buffers :poll-events]
+             (map first (recorded-gl-calls backend))))
+      (is (= [:draw-elements GL11/GL_TRIANGLES 24 GL11/GL_UNSIGNED_INT 0]
+             (first (filter #(= :draw-elements (first %)) (recorded-gl-calls backend)))))
+      (is (instance? game.gl.LWJGLBackend @gl-backend)))))
+
+(deftest benchmark-report
+  (testing "Frames are replayed headlessly and GL calls per frame follow the scene size"
+    (let [saved @entity-list
+          report (run-benchmark {:meshes 2 :grid 2 :texture-size 4 :entities 10
+                                 :controllers [:rotation :move] :warmup 5 :frames 20})
+          {:keys [p50 p99 max]} (:ms-per-frame report)]
+      (is (= 20 (:frames report)))
+      ;; clear, swap and poll, then per entity 11 render calls and 4 key polls from move-controller.
+      (is (= (+ 3 (* 10 15)) (get-in report [:gl-calls-per-frame :p50]) (get-in report [:gl-calls-per-frame :max])))
+      (is (= 10.0 (get-in report [:gl-calls-per-frame :by-call :draw-elements])))
+      (is (<= 0 p50 p99 max))
+      (is (= 80 (:triangles-per-frame report)))
+      (is (= saved @entity-list)))))
+
+(deftest benchmark-keeps-queued-tasks
+  (testing "Tasks queued before a run are neither run nor dropped by it"
+    (let [saved (take-actions)
+          ran (atom false)]
+      (try
+        (queue-action #(reset! ran true))
+        (run-benchmark {:meshes 1 :grid 1 :texture-size 4 :entities 1 :controllers [] :warmup 1 :frames 2})
+        (is (false? @ran))
+        (let [[action & more] (take-actions)]
+          (is (nil? more))
+          ((:task action))
+          (is (true? @ran)))
+        (finally (requeue-actions saved))))))
+
+(deftest finalizers-do-not-block
+  (testing "A finalized resource queues its delete without waiting, except on the null backend"
+    (let [saved (take-actions)]
+      (try
+        (.finalize (GLBuffer. 1 (null-gl-backend)))
+        (is (empty? (take-actions)))
+        (.finalize (GLBuffer. 1 (lwjgl-backend)))
+        (is (= 1 (count (take-actions))))
+        (finally (requeue-actions saved))))))
+
+(deftest bad-options
+  (testing "Unknown options, missing values and bad numbers fail naming the option"
+    (is (thrown-with-msg? IllegalArgumentException #"Unknown option controller"
+                          (parse-options ["controller" "rotation"])))
+    (is (thrown-with-msg? IllegalArgumentException #"Unknown controller spin"
+                          (parse-options ["controllers" "rotation,spin"])))
+    (is (thrown-with-msg? IllegalArgumentException #"Missing value for option frames"
+                          (parse-options ["entities" "10" "frames"])))
+    (is (thrown-with-msg? IllegalArgumentException #"Option frames expects a number, got ten"
+                          (parse-options ["frames" "ten"]))))
+  (testing "A run needs at least one measured frame"
+    (is (thrown-with-msg? IllegalArgumentException #"frames must be at least 1"
+                          (run-benchmark {:entities 1 :frames 0}))))
+  (testing "No samples give no percentiles"
+    (is (nil? (percentiles [])))
+    (is (= {:mean 2.0 :p50 2 :p90 3 :p99 3 :max 3} (percentiles [3 1 2])))))
+
+(deftest report-json
+  (is (= "{\"ms\":[1,2.500,null],\"name\":\"a\\\"b\",\"on\":true}"
+         (json (array-map :ms [1 2.5 nil] :name "a\"b" :on true))))
+  (is (= {:entities 2000 :controllers [:rotation] :queue-task false :out "x.json"}
+         (parse-options ["entities" "2000" "controllers" "rotation" "queue-task" "false" "out" "x.json"]))))
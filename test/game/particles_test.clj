@@ -0,0 +1,110 @@
+(ns game.particles-test
+  (:require [clojure.test :refer :all]
+            [game.particles :refer :all]
+            [game.gl :refer [with-gl-backend recording-gl-backend recorded-gl-calls reset-gl-calls]]
+            [game.core :refer [update-entity render-entity]])
+  (:import (example.particles ParticleSystem)
+           (java.nio ByteBuffer)
+           (org.joml Matrix4f)
+           (org.lwjgl.opengl GL11 GL15)))
+
+(def fountain
+  {:direction [0 1 0] :spread 0.5 :speed [1 3] :life [0.5 1.5] :color [200 100 50 255] :color-jitter 20})
+
+(defn snapshot [^ParticleSystem system]
+  (mapv #(vector (.getX system %) (.getY system %) (.getZ system %) (.getAge system %) (.getColor system %))
+        (range (.getCount system))))
+
+(defn run-frames [^ParticleSystem system emitter frames per-frame]
+  (dotimes [_ frames]
+    (.emit system emitter (int per-frame))
+    (.update system (float 0.05))))
+
+(deftest emission-and-expiry
+  (testing "Particles are added up to capacity and all expire after the longest life"
+    (let [system (create-particle-system 50000 {:gravity [0 -1 0]})
+          emitter (create-emitter fountain)]
+      (is (= 40000 (.emit system emitter (int 40000))))
+      (is (= 10000 (.emit system emitter (int 20000))))
+      (.update system (float 0.4))
+      (is (= 50000 (.getCount system)))
+      (.update system (float 0.6))
+      (is (< 0 (.getCount system) 50000))
+      (.update system (float 0.6))
+      (is (= 0 (.getCount system) (.getVertexCount system)))
+      (.release system))))
+
+(deftest emits-in-one-frame-differ
+  (testing "Two emits before an update draw different particles"
+    (let [system (create-particle-system 200)
+          emitter (create-emitter fountain)]
+      (.emit system emitter (int 100))
+      (.emit system emitter (int 100))
+      (.update system (float 0.01))
+      (let [[first-emit second-emit] (split-at 100 (snapshot system))]
+        (is (not= first-emit second-emit)))
+      (.release system))))
+
+(deftest compaction-keeps-vertices-in-step
+  (testing "After each update the vertex buffer mirrors the surviving particles in order"
+    (let [system (create-particle-system 100000)
+          emitter (create-emitter fountain)]
+      (run-frames system emitter 30 5000)
+      (let [^ByteBuffer vertices (.getVertices system)
+            n (.getVertexCount system)]
+        (is (= (* n ParticleSystem/VERTEX_BYTES) (.remaining vertices)))
+        (is (every? #(and (< (.getAge system %) 1.5)
+                          (= (.getX system %) (.getFloat vertices (* % ParticleSystem/VERTEX_BYTES)))
+                          (= (.getY system %) (.getFloat vertices (+ 4 (* % ParticleSystem/VERTEX_BYTES))))
+                          (= (bit-and 0xFFFFFF (.getColor system %))
+                             (bit-and 0xFFFFFF (.getInt vertices (+ 12 (* % ParticleSystem/VERTEX_BYTES))))))
+                    (range n)))
+        (is (apply >= (map #(.getAge system %) (range n)))))
+      (.release system))))
+
+(deftest parallel-matches-sequential
+  (testing "Chunked parallel emit, simulate and compact give the same particles as one thread"
+    (let [emitter (create-emitter fountain)
+          sequential (create-particle-system 200000)
+          parallel (create-particle-system 200000)]
+      (set! (.parallel sequential) false)
+      (run-frames sequential emitter 20 20000)
+      (run-frames parallel emitter 20 20000)
+      (is (= (snapshot sequential) (snapshot parallel)))
+      (.release sequential)
+      (.release parallel))))
+
+(deftest release-returns-the-vertex-buffer
+  (testing "Releasing a system gives its vertex buffer back to the pool"
+    (let [system (create-particle-system 1000)]
+      (release-particle-system system)
+      (is (thrown? IllegalStateException (release-particle-system system))))))
+
+(deftest renders-through-the-gl-backend
+  (testing "A particle entity sets up and draws its points through the installed backend"
+    (let [backend (recording-gl-backend)]
+      (with-gl-backend backend
+        (let [system (create-particle-system 1000)
+              entity (create-particle-entity (create-particle-renderer) system (create-emitter fountain)
+                                             1000 (Matrix4f.) (Matrix4f.) 10)]
+          (reset-gl-calls backend)
+          (render-entity entity nil)
+          (is (empty? (recorded-gl-calls backend)))
+          (update-entity entity nil 0.1)
+          (render-entity entity nil)
+          (let [calls (recorded-gl-calls backend)
+                n (.getVertexCount system)]
+            (is (pos? n))
+            (is (some #{[:buffer-sub-data GL15/GL_ARRAY_BUFFER 0]} calls))
+            (is (some #{[:draw-arrays GL11/GL_POINTS 0 n]} calls))
+            (is (= [:depth-mask true] (nth calls (- (count calls) 3)))))
+          (dispose-particle-entity entity))))))
+
+(deftest fractional-emission-rate
+  (testing "Emission carries fractions of a particle between frames"
+    (let [system (create-particle-system 1000)
+          emitter (create-emitter fountain)
+          pending (atom 0.0)]
+      (dotimes [_ 10] (emit-particles system emitter 25 pending 0.01))
+      (is (= 2 (.getCount system)))
+      (.release system))))
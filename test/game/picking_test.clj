@@ -0,0 +1,47 @@
+(ns game.picking-test
+  (:require [clojure.test :refer :all]
+            [game.picking :refer :all]
+            [game.shaders :refer [create-mesh]])
+  (:import (game.picking Ray)
+           (org.joml Matrix4f Vector3f)))
+
+(def quad
+  "Unit square in the xy plane at z = 0, two triangles."
+  (create-mesh {:positions [0 0 0  1 0 0  1 1 0  0 1 0]
+                :normals   (repeat 12 0)
+                :uv        (repeat 8 0)
+                :triangles [0 1 2  0 2 3]}))
+
+(defn ray [ox oy oz dx dy dz]
+  (Ray. (Vector3f. ox oy oz) (Vector3f. dx dy dz)))
+
+(defn translated [x y z]
+  (-> (Matrix4f.) (.translate (float x) (float y) (float z))))
+
+(deftest pick-closest-target
+  (testing "The nearer of two stacked quads is picked, in world units"
+    (let [bvh (create-mesh-bvh quad)
+          near {:name :near :bvh bvh :model-tr (translated 0 0 -2)}
+          far {:name :far :bvh bvh :model-tr (translated 0 0 -5)}
+          hit (pick [far near] (ray 0.25 0.75 0 0 0 -1))]
+      (is (= :near (:name hit)))
+      (is (< (Math/abs (- 2.0 (:t hit))) 1e-5))
+      (is (= 1 (:triangle hit)))
+      (is (nil? (pick [far near] (ray 2 2 0 0 0 -1)))))))
+
+(deftest occlusion
+  (testing "Any-hit respects the maximum distance"
+    (let [target {:bvh (create-mesh-bvh quad) :model-tr (translated 0 0 -2)}]
+      (is (occluded? [target] (ray 0.5 0.5 0 0 0 -1) 3))
+      (is (not (occluded? [target] (ray 0.5 0.5 0 0 0 -1) 1))))))
+
+(deftest batched-rays
+  (testing "Batched casting agrees with single picks"
+    (let [target {:bvh (create-mesh-bvh quad) :model-tr (.scale (translated 0 0 -1) (float 2))}
+          origins (for [x (range -1 5) y (range -1 5)] [(* 0.5 x) (* 0.5 y)])
+          rays (float-array (mapcat (fn [[x y]] [x y 0 0 0 -1]) origins))
+          {:keys [t triangle]} (cast-rays target rays)]
+      (doseq [[i [x y]] (map-indexed vector origins)]
+        (let [hit (pick [target] (ray x y 0 0 0 -1))]
+          (is (= (if hit (:triangle hit) -1) (aget ^ints triangle i)))
+          (when hit (is (= (float (:t hit)) (aget ^floats t i)))))))))
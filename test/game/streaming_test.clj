@@ -0,0 +1,92 @@
+(ns game.streaming-test
+  (:require [clojure.test :refer :all]
+            [game.streaming :refer :all]
+            [game.shaders :refer [map->Image buffer-pool-stats]])
+  (:import (java.nio ByteBuffer ByteOrder)
+           (org.lwjgl BufferUtils)))
+
+(defn wait-for-upload [asset]
+  (loop [tries 0]
+    (when (and (#{:queued :decoding} (asset-state asset)) (< tries 200))
+      (Thread/sleep 10)
+      (recur (inc tries)))))
+
+(defn pump-until-ready [loader asset]
+  (loop [frames 0]
+    (if (or (#{:ready :failed} (asset-state asset)) (> frames 1000))
+      frames
+      (do (upload-frame loader) (recur (inc frames))))))
+
+(defn floats-of [^bytes data]
+  (let [fb (.asFloatBuffer (.order (ByteBuffer/wrap data) (ByteOrder/nativeOrder)))
+        result (float-array (.remaining fb))]
+    (.get fb result)
+    (vec result)))
+
+(deftest stream-mesh-within-frame-budget
+  (testing "Mesh data is uploaded in chunks that respect the frame budget"
+    (let [backend (recording-upload-backend)
+          loader (create-streaming-loader {:threads 1 :chunk-size 64 :ring-size 2
+                                           :frame-budget 128 :backend backend})
+          positions (map float (range 300))
+          asset (load-mesh loader "grid.obj" {:positions positions :normals (repeat 300 0)
+                                   :uv (repeat 200 0) :triangles (range 100)})]
+      (wait-for-upload asset)
+      (is (= :uploading (asset-state asset)))
+      (let [frames (pump-until-ready loader asset)
+            mesh (await-asset asset)
+            metrics (loader-metrics loader)]
+        (is (= :ready (asset-state asset)))
+        (is (< 1 frames))
+        (is (= 100 (:num-elements mesh)))
+        (is (= "grid.obj" (:name asset)))
+        (is (= (vec positions) (floats-of (recorded-bytes backend (:positions mesh)))))
+        (is (= (* 4 (+ 300 300 200 100)) (:bytes-uploaded metrics)))
+        (is (every? #(<= (last %) 64)
+                    (filter #(= :upload-buffer-range (first %)) (recorded-calls backend))))
+        (is (= 1 (:assets-ready metrics))))
+      (shutdown-streaming-loader loader))))
+
+(deftest stream-texture-rows
+  (testing "Texture rows are uploaded in row chunks"
+    (let [backend (recording-upload-backend)
+          loader (create-streaming-loader {:threads 1 :chunk-size 64 :backend backend})
+          pixels (byte-array (map unchecked-byte (range 256)))
+          rgba (doto (BufferUtils/createByteBuffer 256) (.put pixels) (.flip))
+          asset (stream-texture loader "test" #(map->Image {:width 8 :height 8 :rgba rgba}))]
+      (wait-for-upload asset)
+      (pump-until-ready loader asset)
+      (is (= (vec pixels) (vec (recorded-bytes backend (await-asset asset)))))
+      (is (= 4 (count (filter #(= :upload-texture-rows (first %)) (recorded-calls backend)))))
+      (shutdown-streaming-loader loader))))
+
+(deftest failed-decode
+  (testing "Decode errors fail the asset and are rethrown by await-asset"
+    (let [loader (create-streaming-loader {:threads 1 :backend (recording-upload-backend)})
+          asset (stream-mesh loader "broken" #(throw (RuntimeException. "No milk left")))]
+      (try
+        (await-asset asset)
+        (is false "Expected exception thrown")
+        (catch RuntimeException e
+          (is (= "No milk left" (-> e .getCause .getMessage)))))
+      (is (= :failed (asset-state asset)))
+      (shutdown-streaming-loader loader))))
+
+(deftest failed-upload-releases-owned-buffer
+  (testing "A texture the loader decoded goes back to the pool when its upload fails"
+    (let [backend (reify UploadBackend
+                    (allocate-texture [this width height] 1)
+                    (upload-texture-rows [this texture y width rows data]
+                      (throw (RuntimeException. "Lost context"))))
+          loader (create-streaming-loader {:threads 1 :backend backend})
+          outstanding (:outstanding (buffer-pool-stats))
+          asset (load-texture loader "stone_texture.jpg")]
+      ;; create-image decodes the jpeg a pixel at a time, so allow it longer than wait-for-upload.
+      (loop [tries 0]
+        (when (and (#{:queued :decoding} (asset-state asset)) (< tries 6000))
+          (Thread/sleep 10)
+          (recur (inc tries))))
+      (pump-until-ready loader asset)
+      (is (= :failed (asset-state asset)))
+      (is (= outstanding (:outstanding (buffer-pool-stats))))
+      (shutdown-streaming-loader loader))))
@@ -0,0 +1,115 @@
+(ns game.texture-test
+  (:require [clojure.test :refer :all]
+            [game.texture :refer :all]
+            [game.shaders :refer [byte-buffer create-mesh]])
+  (:import (game.shaders Image)
+           (example.texture MipChain TextureAtlas BlockCompressor BlockCompressor$Format CompressedTexture)))
+
+(defn solid-image [width height value]
+  (Image. width height (byte-buffer (byte-array (* 4 width height) (unchecked-byte value)))))
+
+(deftest mip-chain-sizes
+  (testing "Levels halve down to 1x1, rounding odd sizes down"
+    (is (= [[5 3] [2 1] [1 1]] (mip-levels (build-mip-chain (solid-image 5 3 255)))))
+    (is (= 11 (.getLevelCount (build-mip-chain (solid-image 1024 16 0)))))
+    (is (= 3 (.getLevelCount (build-mip-chain (solid-image 64 64 0) 3))))))
+
+(deftest mip-chain-is-gamma-correct
+  (testing "A black and white checker averages to linear grey, not sRGB 128"
+    (let [checker (byte-array (for [y (range 8) x (range 8) c (range 4)]
+                                (unchecked-byte (if (or (= c 3) (even? (+ x y))) 255 0))))
+          chain (MipChain/build checker 8 8 0 false)
+          ^bytes last-level (last (.levels chain))]
+      (is (= 188 (bit-and 0xFF (aget last-level 0))))
+      (is (= 255 (bit-and 0xFF (aget last-level 3))))))
+  (testing "Fully transparent texels do not darken their neighbours"
+    (let [texels (byte-array [255 0 0 255  0 0 0 0  255 0 0 255  0 0 0 0])
+          ^bytes level (second (.levels (MipChain/build texels 2 2 0 false)))]
+      (is (= [255 0 0 128] (map #(bit-and 0xFF %) level)))))
+  (testing "Parallel filtering matches sequential"
+    (let [texels (byte-array (map unchecked-byte (take (* 4 300 200) (iterate #(mod (+ (* 31 %) 7) 256) 1))))
+          sequential (MipChain/build texels 300 200 0 false)
+          parallel (MipChain/build texels 300 200 0 true)]
+      (is (every? true? (map #(java.util.Arrays/equals ^bytes %1 ^bytes %2) (.levels sequential) (.levels parallel)))))))
+
+(defn overlaps? [a b]
+  (and (= (:page a) (:page b))
+       (< (:x a) (+ (:x b) (:width b))) (< (:x b) (+ (:x a) (:width a)))
+       (< (:y a) (+ (:y b) (:height b))) (< (:y b) (+ (:y a) (:height a)))))
+
+(deftest atlas-packing
+  (testing "Sprites are placed without overlap, inside their pages and reasonably densely"
+    (let [random (java.util.Random. 7)
+          sizes (vec (repeatedly 400 #(vector (+ 4 (.nextInt random 40)) (+ 4 (.nextInt random 40)))))
+          atlas (TextureAtlas/pack 256 256 1 (int-array (map first sizes)) (int-array (map second sizes)))
+          padded (for [i (range (count sizes))]
+                   {:page   (aget (.page atlas) i)
+                    :x      (dec (aget (.x atlas) i)) :y (dec (aget (.y atlas) i))
+                    :width  (+ 2 (aget (.width atlas) i)) :height (+ 2 (aget (.height atlas) i))})]
+      (is (every? #(and (<= 0 (:x %)) (<= 0 (:y %)) (<= (+ (:x %) (:width %)) 256) (<= (+ (:y %) (:height %)) 256)) padded))
+      (is (not-any? true? (for [[i a] (map-indexed vector padded) b (drop (inc i) padded)] (overlaps? a b))))
+      (is (< 0.7 (.getOccupancy atlas))))))
+
+(deftest atlas-mesh-uv
+  (testing "Mesh uv land on the image's rectangle and pixels and padding are copied"
+    (let [packed (pack-atlas {:red (solid-image 16 8 200) :blue (solid-image 8 8 100)}
+                             {:page-width 64 :page-height 64 :padding 2})
+          {:keys [page x y width height]} (atlas-region packed :red)
+          mesh (atlas-mesh packed :red (create-mesh {:positions [0 0 0 1 0 0 1 1 0]
+                                                     :normals   (repeat 9 0)
+                                                     :uv        [0 0 1 0 1 1]
+                                                     :triangles [0 1 2]}))
+          ^bytes pixels (.getPage ^TextureAtlas (:atlas packed) page)]
+      (is (= page (:atlas-page mesh)))
+      (is (= (map float [(/ x 64) (/ y 64) (/ (+ x width) 64) (/ y 64) (/ (+ x width) 64) (/ (+ y height) 64)])
+             (seq (:uv mesh))))
+      (is (= 200 (bit-and 0xFF (aget pixels (* 4 (+ (* 64 y) x))))))
+      (is (= 200 (bit-and 0xFF (aget pixels (* 4 (+ (* 64 (- y 2)) (- x 2))))))))
+    (is (= {:images 2 :pages 1}
+           (dissoc (atlas-stats (pack-atlas {:a (solid-image 4 4 0) :b (solid-image 4 4 0)})) :occupancy)))))
+
+(defn gradient-pixels [width height]
+  (byte-array (for [y (range height) x (range width) c (range 4)]
+                (unchecked-byte (case c 0 (* 4 x) 1 (* 4 y) 2 (+ (* 2 x) (* 2 y)) 3 (* 16 (mod x 16)))))))
+
+(deftest block-compression-quality
+  (testing "Smooth gradients survive BC1 and BC3 with high PSNR, including partial edge blocks"
+    (let [pixels (gradient-pixels 62 50)]
+      (doseq [format [BlockCompressor$Format/BC1 BlockCompressor$Format/BC3]]
+        (let [blocks (BlockCompressor/compress pixels 62 50 format true)
+              decoded (BlockCompressor/decompress blocks 62 50 format)]
+          (is (= (* 16 13 (.blockBytes format)) (alength ^bytes blocks)))
+          (is (< 35 (BlockCompressor/psnr pixels decoded 3)))))))
+  (testing "BC3 keeps alpha, BC1 drops it"
+    (let [pixels (gradient-pixels 16 16)
+          alpha (fn [format]
+                  (let [^bytes decoded (BlockCompressor/decompress (BlockCompressor/compress pixels 16 16 format false) 16 16 format)]
+                    (map #(bit-and 0xFF (aget decoded (+ 3 (* 4 %)))) (range 16))))]
+      (is (every? true? (map #(< (Math/abs (- %1 %2)) 10) (alpha BlockCompressor$Format/BC3) (range 0 256 16))))
+      (is (every? #{255} (alpha BlockCompressor$Format/BC1)))))
+  (testing "Parallel encoding matches sequential"
+    (let [pixels (gradient-pixels 64 64)]
+      (is (java.util.Arrays/equals ^bytes (BlockCompressor/compress pixels 64 64 BlockCompressor$Format/BC3 false)
+                                   ^bytes (BlockCompressor/compress pixels 64 64 BlockCompressor$Format/BC3 true))))))
+
+(deftest compressed-texture-cache
+  (testing "A compressed mip chain is written once and read back identically"
+    (let [dir (doto (java.io.File/createTempFile "texture-cache" "") .delete)
+          image (Image. 32 32 (byte-buffer (gradient-pixels 32 32)))]
+      (with-redefs [texture-cache-dir dir]
+        (let [^CompressedTexture first-pass (cached-compress-texture image :bc1)
+              ^CompressedTexture second-pass (cached-compress-texture image :bc1)]
+          (is (= 1 (count (.listFiles dir))))
+          (is (= 6 (.getLevelCount second-pass)))
+          (is (every? true? (map #(java.util.Arrays/equals ^bytes %1 ^bytes %2) (.levels first-pass) (.levels second-pass))))
+          (is (not= (texture-cache-key image :bc1) (texture-cache-key image :bc3)))
+          (is (not= (texture-cache-key image :bc1)
+                    (with-redefs [texture-cache-version "bc0.bctx0"] (texture-cache-key image :bc1))))))))
+  (testing "A cache entry that cannot be written is skipped"
+    (let [dir (doto (java.io.File/createTempFile "texture-cache" "") .delete)
+          image (Image. 8 8 (byte-buffer (gradient-pixels 8 8)))]
+      (with-redefs [texture-cache-dir dir]
+        (.mkdirs (java.io.File. dir (str (texture-cache-key image :bc3) ".bctx")))
+        (let [output (with-out-str (is (= 4 (.getLevelCount (cached-compress-texture image :bc3)))))]
+          (is (.startsWith output "Unable to cache"))
+          (is (= 1 (count (.listFiles dir)))))))))